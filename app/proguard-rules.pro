@@ -21,6 +21,7 @@
 -keep public interface android.content.pm.IPackageDeleteObserver { *; }
 -keep class android.content.pm.IPackageInstallObserver$Stub { *; }
 -keep public class com.dragons.aurora.InstallerPrivileged$* { *; }
+-keep class com.aurora.services.helper.** { *; }
 
 -renamesourcefileattribute SourceFile
 -repackageclasses
\ No newline at end of file
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Binder;
+import android.os.Process;
 
 import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
@@ -54,6 +55,13 @@ public class AccessProtectionHelper {
             return callingPackages[0];
     }
 
+    /**
+     * Whether the caller is this app itself, e.g. the activity in the main process.
+     */
+    public boolean isCallerSelf() {
+        return Binder.getCallingUid() == Process.myUid();
+    }
+
     public boolean isCallerAllowed() {
         return isUidAllowed(Binder.getCallingUid());
     }
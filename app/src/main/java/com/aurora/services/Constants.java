@@ -10,6 +10,20 @@ public class Constants {
     public static final String BROADCAST_SENDER_PERMISSION = "android.permission.INSTALL_PACKAGES";
 
     public static final String PREFERENCE_TARGET_HOST = "PREFERENCE_TARGET_HOST";
+    public static final String PREFERENCE_TARGET_HOSTS = "PREFERENCE_TARGET_HOSTS";
     public static final String PREFERENCE_WHITELIST_PACKAGE_LIST = "PREFERENCE_WHITELIST_PACKAGE_LIST";
     public static final String PREFERENCE_STATS_LIST = "PREFERENCE_STATS_LIST";
+    public static final String PREFERENCE_CONNECTION_IDLE_TIMEOUT = "PREFERENCE_CONNECTION_IDLE_TIMEOUT";
+    public static final String PREFERENCE_PORT_DISCOVERY_DISABLED = "PREFERENCE_PORT_DISCOVERY_DISABLED";
+    public static final String PREFERENCE_PORT_DISCOVERY_MIN = "PREFERENCE_PORT_DISCOVERY_MIN";
+    public static final String PREFERENCE_PORT_DISCOVERY_MAX = "PREFERENCE_PORT_DISCOVERY_MAX";
+    public static final String PREFERENCE_HOST_PROFILES = "PREFERENCE_HOST_PROFILES";
+    public static final String PREFERENCE_INSTALL_PARALLELISM = "PREFERENCE_INSTALL_PARALLELISM";
+    public static final String PREFERENCE_INSTALL_CONNECTIONS = "PREFERENCE_INSTALL_CONNECTIONS";
+    public static final String PREFERENCE_SYNC_STAGING = "PREFERENCE_SYNC_STAGING";
+    public static final String PREFERENCE_STAGING_CACHE = "PREFERENCE_STAGING_CACHE";
+    public static final String PREFERENCE_PARTIAL_INSTALL = "PREFERENCE_PARTIAL_INSTALL";
+    public static final String PREFERENCE_KEEP_ALL_SPLITS = "PREFERENCE_KEEP_ALL_SPLITS";
+    public static final String PREFERENCE_STAGING_CACHE_SIZE = "PREFERENCE_STAGING_CACHE_SIZE";
+    public static final String PREFERENCE_STAGING_CACHE_INDEX = "PREFERENCE_STAGING_CACHE_INDEX";
 }
@@ -22,42 +22,79 @@ import android.content.ClipboardManager;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.*;
 import android.provider.OpenableColumns;
 import android.provider.Settings;
-import android.util.Base64;
+import android.text.TextUtils;
 import androidx.core.app.NotificationCompat;
 import androidx.core.util.Pair;
+import com.aurora.services.adb.AdbClient;
+import com.aurora.services.adb.AdbCommandSession;
+import com.aurora.services.adb.AdbInstallHelper;
+import com.aurora.services.adb.AdbStream;
+import com.aurora.services.adb.AdbSync;
+import com.aurora.services.adb.AdbTimeoutException;
+import com.aurora.services.adb.AdbTimeouts;
+import com.aurora.services.adb.AdbWatchdog;
+import com.aurora.services.adb.PackageManagerException;
+import com.aurora.services.adb.PackageShell;
+import com.aurora.services.adb.SourceReader;
+import com.aurora.services.manager.AdbConnectionManager;
+import com.aurora.services.manager.AdbKeyManager;
+import com.aurora.services.manager.ArchiveInfoManager;
+import com.aurora.services.manager.DiagnosticsManager;
 import com.aurora.services.manager.LogManager;
-import com.aurora.services.manager.TargetHostManager;
-import com.aurora.services.model.item.HostItem;
+import com.aurora.services.manager.StagingCacheManager;
+import com.aurora.services.model.ConnectionState;
+import com.aurora.services.model.item.HostProfile;
+import com.aurora.services.utils.ApkManifest;
 import com.aurora.services.utils.Log;
-import com.tananaev.adblib.AdbConnection;
-import com.tananaev.adblib.AdbCrypto;
-import com.tananaev.adblib.AdbStream;
+import com.aurora.services.utils.PrefUtil;
+import com.aurora.services.utils.SplitArchive;
+import com.aurora.services.utils.SplitFilter;
 import kotlin.Triple;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.ZipFile;
 
 public class PrivilegedService extends Service {
 
     public static PrivilegedService instance = null;
 
+    private static final int DEFAULT_WRITE_PARALLELISM = 3;
+    private static final int MAX_WRITE_PARALLELISM = 8;
+    private static final long MIN_RANGE_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_WRITE_RESUMES = 3;
+    private static final String STAGING_DIR = "/data/local/tmp/aurora-stage";
+    private static final String OBB_DIR = "/sdcard/Android/obb";
+    private static final long RESUME_BACKOFF = 2000;
+
     private AccessProtectionHelper helper;
     private LogManager logManager;
+    private AdbConnectionManager connectionManager;
+    private StagingCacheManager stagingCache;
+    private ArchiveInfoManager archiveInfoManager;
 
     private NotificationManager notificationManager;
 
@@ -68,6 +105,17 @@ public class PrivilegedService extends Service {
 
     private IPrivilegedCallback iPrivilegedCallback;
 
+    private final RemoteCallbackList<IConnectionStateCallback> connectionStateCallbacks = new RemoteCallbackList<>();
+    private final AdbConnectionManager.StateListener connectionStateListener = state -> {
+        synchronized (connectionStateCallbacks) {
+            int count = connectionStateCallbacks.beginBroadcast();
+            for (int i = 0; i < count; i++) {
+                dispatchConnectionState(connectionStateCallbacks.getBroadcastItem(i), state);
+            }
+            connectionStateCallbacks.finishBroadcast();
+        }
+    };
+
     private final IPrivilegedService.Stub binder = new IPrivilegedService.Stub() {
 
         @Override
@@ -123,6 +171,60 @@ public class PrivilegedService extends Service {
             doSplitPackageStage(uriList, fileList, packageName);
         }
 
+        @Override
+        public void installSplitPackageWithObb(String packageName, List<Uri> uriList, List<Uri> obbList, int flags,
+                                               String installerPackageName, IPrivilegedCallback callback,
+                                               List<String> fileList) {
+            if (!helper.isCallerAllowed()) {
+                try {
+                    callback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE, "Not whitelisted!");
+                } catch (RemoteException remoteException) {
+                    remoteException.printStackTrace();
+                    notifyError(remoteException.getMessage());
+                }
+                return;
+            }
+
+            iPrivilegedCallback = callback;
+            doSplitPackageStage(uriList, obbList, fileList, packageName);
+        }
+
+        @Override
+        public void installSplitPackageFromArchive(String packageName, Uri archiveUri, int flags,
+                                                   String installerPackageName, IPrivilegedCallback callback) {
+            if (!helper.isCallerAllowed()) {
+                try {
+                    callback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE, "Not whitelisted!");
+                } catch (RemoteException remoteException) {
+                    remoteException.printStackTrace();
+                    notifyError(remoteException.getMessage());
+                }
+                return;
+            }
+
+            iPrivilegedCallback = callback;
+            doArchiveStage(archiveUri, packageName);
+        }
+
+        @Override
+        public void installSplitPackageFromPipes(String packageName, List<String> nameList,
+                                                 List<ParcelFileDescriptor> pipeList, long[] sizeArray, int flags,
+                                                 String installerPackageName, IPrivilegedCallback callback) {
+            if (!helper.isCallerAllowed()) {
+                try {
+                    callback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE, "Not whitelisted!");
+                } catch (RemoteException remoteException) {
+                    remoteException.printStackTrace();
+                    notifyError(remoteException.getMessage());
+                }
+                closePipes(pipeList);
+                return;
+            }
+
+            iPrivilegedCallback = callback;
+            doPipeStage(nameList, pipeList, sizeArray, packageName);
+        }
+
         @Override
         public void installSplitPackageX(String packageName, List<Uri> uriList, int flags, String installerPackageName, IPrivilegedCallback callback) {
             if (!helper.isCallerAllowed()) {
@@ -157,47 +259,40 @@ public class PrivilegedService extends Service {
             executor.execute(
                     () -> {
                         boolean success = false;
+                        boolean timedOut = false;
+                        AdbClient connection = null;
                         try {
-                            HostItem hostItem = new TargetHostManager(PrivilegedService.this).getTargetHost();
-                            Socket socket = new Socket(hostItem.host, hostItem.port);
-
-                            File privateKey = new File(getFilesDir() + "/adbkey");
-                            File publicKey = new File(getFilesDir() + "/adbkey.pub");
-                            if (!privateKey.exists()) {
-                                AdbCrypto crypto = AdbCrypto.generateAdbKeyPair(data -> Base64.encodeToString(data, Base64.NO_WRAP));
-                                crypto.saveAdbKeyPair(privateKey, publicKey);
-                            }
-                            AdbCrypto crypto = AdbCrypto.loadAdbKeyPair(data -> Base64.encodeToString(data, Base64.NO_WRAP),
-                                    privateKey,
-                                    publicKey);
-
-                            connection = AdbConnection.create(socket, crypto);
-                            connection.connect();
-                            AdbStream stream = connection.open("shell:"+ "pm clear " + packageName);
-                            stream.read();
-                            stream.close();
-                            stream = connection.open("shell:"+ "pm uninstall " + packageName);
-                            String out = new String(stream.read()).trim();
-                            stream.close();
-                            if (out.toLowerCase().contains("success")) {
-                                success = true;
+                            connection = connectionManager.acquire();
+                            PackageShell shell = connectionManager.getPackageShell(connection);
+                            AdbCommandSession session = connectionManager.getCommandSession(connection);
+                            try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(connection, "uninstall",
+                                    AdbTimeouts.UNINSTALL)) {
+                                session.execute(shell.commandLine("clear", packageName));
+                                String out = session.execute(shell.commandLine("uninstall", packageName)).getOutput().trim();
+                                if (out.toLowerCase().contains("success")) {
+                                    success = true;
+                                }
                             }
+                            connectionManager.release(connection);
                         } catch (Throwable e){
-                            notifyError(e.getMessage());
-                        } finally {
                             if (connection != null) {
-                                try {
-                                    connection.close();
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
+                                connectionManager.invalidate(connection);
                             }
+                            timedOut = AdbTimeoutException.isTimeout(e);
+                            notifyError(e.getMessage());
                         }
                         boolean finalSuccess = success;
+                        boolean finalTimedOut = timedOut;
                         new Handler(Looper.getMainLooper()).post(new Runnable() {
                             @Override
                             public void run() {
-                                if (finalSuccess) {
+                                if (finalTimedOut) {
+                                    try {
+                                        callback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE_ABORTED, "Timed out");
+                                    } catch (RemoteException remoteException) {
+                                        remoteException.printStackTrace();
+                                    }
+                                } else if (finalSuccess) {
                                     try {
                                         callback.handleResultX(packageName, PackageInstaller.STATUS_SUCCESS, "Done!");
                                     } catch (RemoteException remoteException) {
@@ -214,6 +309,53 @@ public class PrivilegedService extends Service {
                         });
                     });
         }
+
+        @Override
+        public void registerConnectionStateCallback(IConnectionStateCallback callback) {
+            checkStateAccess();
+            connectionStateCallbacks.register(callback);
+            dispatchConnectionState(callback, connectionManager.getConnectionState());
+        }
+
+        @Override
+        public void unregisterConnectionStateCallback(IConnectionStateCallback callback) {
+            connectionStateCallbacks.unregister(callback);
+        }
+
+        @Override
+        public void reprobeConnection() {
+            checkStateAccess();
+            connectionManager.reprobe();
+        }
+
+        @Override
+        public void runDiagnostics(IDiagnosticsCallback callback) {
+            checkStateAccess();
+            // queued behind running installs, so it neither slows them down nor measures them
+            executor.execute(() -> {
+                DiagnosticsManager diagnosticsManager = new DiagnosticsManager(getApplicationContext());
+                String report = null;
+                String error = null;
+                try {
+                    HostProfile profile = diagnosticsManager.run();
+                    report = DiagnosticsManager.format(profile);
+                } catch (Throwable e) {
+                    Log.w("Diagnostics failed: %s", e.getMessage());
+                    error = e.getMessage() != null ? e.getMessage() : e.toString();
+                }
+                try {
+                    callback.onDiagnosticsFinished(diagnosticsManager.getEndpoint(), report, error);
+                } catch (RemoteException remoteException) {
+                    remoteException.printStackTrace();
+                }
+            });
+        }
+
+        private void checkStateAccess() {
+            if (!helper.isCallerSelf() && !helper.isCallerAllowed()) {
+                throw new SecurityException("Not whitelisted!");
+            }
+        }
     };
 
     @Override
@@ -228,6 +370,12 @@ public class PrivilegedService extends Service {
         helper = new AccessProtectionHelper(this);
         logManager = new LogManager(this);
         executor = new ThreadPoolExecutor(0, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        AdbKeyManager.getInstance(this).preload();
+        connectionManager = AdbConnectionManager.getInstance(this);
+        stagingCache = StagingCacheManager.getInstance(this);
+        archiveInfoManager = ArchiveInfoManager.getInstance(this);
+        connectionManager.addStateListener(connectionStateListener);
+        connectionManager.prewarm();
         Intent settingsIntent = null;
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
             notificationManager = getSystemService(NotificationManager.class);
@@ -279,172 +427,1095 @@ public class PrivilegedService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
+        connectionManager.prewarm();
         return binder;
     }
 
-    private static AdbConnection connection = null;
-
     private void doSplitPackageStage(List<Uri> uriList, List<String> fileList, String packageName) {
+        doSplitPackageStage(uriList, null, fileList, packageName);
+    }
+
+    private void doSplitPackageStage(List<Uri> uriList, List<Uri> obbList, List<String> fileList,
+                                     String packageName) {
         executor.execute(
                 () -> {
+                    if ((obbList == null || obbList.isEmpty()) && isInstalled(packageName, uriList, fileList)) {
+                        Log.i("%s is installed already, skipping", packageName);
+                        new Handler(Looper.getMainLooper()).post(() -> {
+                            try {
+                                iPrivilegedCallback.handleResultX(packageName, PackageInstaller.STATUS_SUCCESS,
+                                        "Already installed");
+                            } catch (RemoteException remoteException) {
+                                remoteException.printStackTrace();
+                            }
+                        });
+                        return;
+                    }
+                    installSplits(packageName, obbList, connection -> openSplits(connection, uriList, fileList));
+                });
+    }
+
+    private void doArchiveStage(Uri archiveUri, String packageName) {
+        executor.execute(() -> installSplits(packageName, null, connection -> openArchive(archiveUri)));
+    }
+
+    /**
+     * Installs splits the caller writes into pipes while this runs, usually as
+     * they download. The session opens right away and every split is forwarded
+     * as its bytes arrive; sizes may be -1 where the caller does not know them.
+     */
+    private void doPipeStage(List<String> nameList, List<ParcelFileDescriptor> pipeList, long[] sizeArray,
+                             String packageName) {
+        String error = null;
+        // a LinkedHashMap keeps the order the caller fills the pipes in
+        LinkedHashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles = new LinkedHashMap<>();
+        if (nameList == null || pipeList == null || sizeArray == null
+                || nameList.size() != pipeList.size() || sizeArray.length != pipeList.size()) {
+            error = "Every pipe needs a split name and a size";
+        } else {
+            for (int i = 0; i < pipeList.size() && error == null; i++) {
+                if (nameList.get(i) == null || pipeList.get(i) == null) {
+                    error = "Split " + i + " has no name or no pipe";
+                } else if (apkFiles.put(nameList.get(i), new Triple<>(pipeList.get(i), sizeArray[i], null)) != null) {
+                    error = "Split " + nameList.get(i) + " is given twice";
+                }
+            }
+        }
+        if (error != null) {
+            closePipes(pipeList);
+            try {
+                iPrivilegedCallback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE, error);
+            } catch (RemoteException remoteException) {
+                remoteException.printStackTrace();
+            }
+            return;
+        }
+
+        // the caller's writers block until the read ends close, whether or not the install got to them
+        executor.execute(() -> {
+            try {
+                installSplits(packageName, null, connection -> apkFiles);
+            } finally {
+                closePipes(pipeList);
+            }
+        });
+    }
+
+    private static void closePipes(List<ParcelFileDescriptor> pipeList) {
+        if (pipeList == null) {
+            return;
+        }
+        for (ParcelFileDescriptor pipe : pipeList) {
+            if (pipe == null) {
+                continue;
+            }
+            try {
+                pipe.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void installSplits(String packageName, List<Uri> obbList, SplitSource source) {
+        AdbClient connection = null;
+        try {
+            connection = connectionManager.acquire();
+            PackageShell shell = connectionManager.getPackageShell(connection);
+            HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles = source.open(connection);
+            final List<String> skippedSplits = new ArrayList<>();
+            List<AdbClient> stripes = null;
+            boolean staged = false;
+            final String commitSessionResult;
+            // archive feeders and callers block on their pipes until these close, on any failure
+            try {
+                long totalSize = sizeOf(apkFiles);
+                if (apkFiles.size() > 1 && !PrefUtil.getBoolean(this, Constants.PREFERENCE_KEEP_ALL_SPLITS)) {
+                    skippedSplits.addAll(removeUnneededSplits(apkFiles));
+                    totalSize = sizeOf(apkFiles);
+                }
+
+                Map<String, String> splitHashes = new HashMap<>();
+                String inheritPackage = null;
+                if (PrefUtil.getBoolean(this, Constants.PREFERENCE_PARTIAL_INSTALL)) {
+                    inheritPackage = planPartialInstall(connection, shell, packageName, apkFiles, splitHashes);
+                    if (inheritPackage != null) {
+                        totalSize = sizeOf(apkFiles);
+                    }
+                }
+
+                AdbInstallHelper installHelper = connectionManager.getInstallHelper(connection);
+                stripes = connectionManager.openStripes(connection, totalSize);
+                if (obbList != null && !obbList.isEmpty()) {
+                    pushObbFiles(connection, packageName, obbList);
+                }
+                if (stagingCache.isEnabled()) {
+                    cacheSplits(connection, stripes, apkFiles, splitHashes);
+                }
+                if (PrefUtil.getBoolean(this, Constants.PREFERENCE_SYNC_STAGING)) {
+                    staged = true;
+                    stageSplits(connection, stripes, packageName, apkFiles);
+                }
+                String helperResult = installHelper != null
+                        ? installWithHelper(connection, installHelper, stripes, apkFiles, totalSize,
+                        inheritPackage)
+                        : null;
+                commitSessionResult = helperResult != null
+                        ? helperResult
+                        : installWithShell(connection, shell, stripes, apkFiles, totalSize,
+                        inheritPackage);
+            } finally {
+                if (stripes != null) {
+                    connectionManager.closeStripes(stripes);
+                }
+                closeSplits(apkFiles);
+                if (staged) {
+                    removeStagedSplits(connection, packageName);
+                }
+            }
+            connectionManager.release(connection);
+
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        HostItem hostItem = new TargetHostManager(this).getTargetHost();
-                        Socket socket = new Socket(hostItem.host, hostItem.port);
-
-                        File privateKey = new File(getFilesDir() + "/adbkey");
-                        File publicKey = new File(getFilesDir() + "/adbkey.pub");
-                        if (!privateKey.exists()) {
-                            AdbCrypto crypto = AdbCrypto.generateAdbKeyPair(data -> Base64.encodeToString(data, Base64.NO_WRAP));
-                            crypto.saveAdbKeyPair(privateKey, publicKey);
+                        if (commitSessionResult.toLowerCase().contains("success")) {
+                            iPrivilegedCallback.handleResultX(packageName, PackageInstaller.STATUS_SUCCESS,
+                                    skippedSplits.isEmpty()
+                                            ? "Done!"
+                                            : "Done! Skipped " + TextUtils.join(", ", skippedSplits));
+                            logManager.addToStats(packageName);
+                        } else {
+                            iPrivilegedCallback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE, "Install command failed!");
+                            notifyError(commitSessionResult);
                         }
-                        AdbCrypto crypto = AdbCrypto.loadAdbKeyPair(data -> Base64.encodeToString(data, Base64.NO_WRAP),
-                                privateKey,
-                                publicKey);
-
-                        connection = AdbConnection.create(socket, crypto);
-                        connection.connect();
-                        ContentResolver resolver = getApplicationContext()
-                                .getContentResolver();
-                        //HashMap<filename, Triple<file, size, fullPath>>
-                        HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles = new HashMap<>();
-                        int totalSize = 0;
-                        for (Uri uri : uriList) {
-                            Cursor returnCursor = resolver.query(uri, null, null, null, null);
-                            int nameIndex = returnCursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-                            int sizeIndex = returnCursor.getColumnIndex(OpenableColumns.SIZE);
-                            returnCursor.moveToFirst();
-                            String readOnlyMode = "r";
-                            long fileSize = returnCursor.getLong(sizeIndex);
-                            String fileName = returnCursor.getString(nameIndex);
-                            String fullFilePath = null;
-                            if (fileList != null && !fileList.isEmpty()) {
-                                for (String file : fileList) {
-                                    if (new File(file).getName().equals(fileName)) {
-                                        fullFilePath = file;
-                                        break;
-                                    }
-                                }
-                            }
-                            apkFiles.put(fileName, new Triple(resolver.openFileDescriptor(uri, readOnlyMode), fileSize, fullFilePath));
-                            totalSize += fileSize;
-                            returnCursor.close();
+                    } catch (RemoteException remoteException) {
+                        remoteException.printStackTrace();
+                    }
+                }
+            });
+        } catch (Throwable e) {
+            if (connection != null) {
+                // a refusal by the package manager leaves the link healthy, keep it pooled
+                if (e instanceof PackageManagerException) {
+                    connectionManager.release(connection);
+                } else {
+                    connectionManager.invalidate(connection);
+                }
+            }
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    e.printStackTrace();
+                    try {
+                        if (AdbTimeoutException.isTimeout(e)) {
+                            iPrivilegedCallback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE_ABORTED, "Timed out");
+                        } else {
+                            iPrivilegedCallback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE, e.getMessage());
                         }
+                        notifyError(e.getMessage());
+                    } catch (RemoteException remoteException) {
+                        remoteException.printStackTrace();
+                    }
+                    Log.w(e.getMessage());
+                }
+            });
+        }
+    }
 
-                        AdbStream stream = connection.open("shell:"+ String.format(Locale.getDefault(),
-                                "pm install-create -i com.android.vending --user %s -r -S %d",
-                                "0",
-                                totalSize));
-                        String createSessionResult = new String(stream.read()).trim();
-                        stream.close();
-
-                        final Pattern sessionIdPattern = Pattern.compile("(\\d+)");
-                        final Matcher sessionIdMatcher = sessionIdPattern.matcher(createSessionResult);
-                        boolean found = sessionIdMatcher.find();
-                        int sessionId = Integer.parseInt(sessionIdMatcher.group(1));
-
-                        boolean forceUseUri = false;
-                        int runs = 1;
-                        while (runs > 0) {
-                            for (Map.Entry<String, Triple<ParcelFileDescriptor, Long, String>> apkFile : apkFiles.entrySet()) {
-                                if (!forceUseUri && apkFile.getValue().getThird() != null) {
-                                    stream = connection.open("exec:" + String.format(Locale.getDefault(),
-                                            "cat \"%s\" | pm install-write -S %d %d \"%s\"",
-                                            apkFile.getValue().getThird(),
-                                            apkFile.getValue().getSecond(),
-                                            sessionId,
-                                            apkFile.getKey()));
-                                    String result = new String(stream.read()).trim();
-                                    Log.d("pm install-write result: "+result);
-                                    stream.close();
-                                    if (result.contains("Permission denied")) {
-                                        runs++;
-                                        forceUseUri = true;
-                                        break;
-                                    }
-                                    apkFile.getValue().getFirst().close();
-                                } else {
-                                    stream = connection.open("exec:" + String.format(Locale.getDefault(),
-                                            "pm install-write -S %d %d \"%s\"",
-                                            apkFile.getValue().getSecond(),
-                                            sessionId,
-                                            apkFile.getKey()));
+    /**
+     * Opens the splits of an install, by file name. Each maps to its descriptor,
+     * its size and the path the device reads it from, null if it must be sent.
+     */
+    private interface SplitSource {
+        HashMap<String, Triple<ParcelFileDescriptor, Long, String>> open(AdbClient connection)
+                throws IOException, InterruptedException;
+    }
 
-                                    FileInputStream fis = new FileInputStream(apkFile.getValue().getFirst().getFileDescriptor());
-                                    try {
-                                        // larger buffer than 4 * 1024 timeouts adb and it stops the read
-                                        // recommended and expected size is 1024
-                                        // best performance with low risk of timeout - 2 * 1024
-                                        byte[] buf = new byte[2 * 1024];
-                                        while (fis.read(buf) > 0) {
-                                            stream.write(buf);
-                                        }
-                                    } finally {
-                                        stream.close();
-                                        fis.close();
-                                        apkFile.getValue().getFirst().close();
-                                    }
-                                }
-                            }
-                            runs--;
-                        }
+    private HashMap<String, Triple<ParcelFileDescriptor, Long, String>> openSplits(AdbClient connection,
+                                                                                  List<Uri> uriList,
+                                                                                  List<String> fileList)
+            throws IOException, InterruptedException {
+        ContentResolver resolver = getApplicationContext()
+                .getContentResolver();
+        //HashMap<filename, Triple<file, size, fullPath>>
+        HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles = new HashMap<>();
+        try {
+            openUris(connection, resolver, uriList, fileList, apkFiles);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            closeSplits(apkFiles);
+            throw e;
+        }
+        return apkFiles;
+    }
 
-                        stream = connection.open("shell:"+ String.format(Locale.getDefault(),
-                                "pm install-commit %d ",
-                                sessionId));
-                        String commitSessionResult = new String(stream.read()).trim();
-                        stream.close();
+    private void openUris(AdbClient connection, ContentResolver resolver, List<Uri> uriList,
+                          List<String> fileList, HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles)
+            throws IOException, InterruptedException {
+        for (Uri uri : uriList) {
+            Cursor returnCursor = resolver.query(uri, null, null, null, null);
+            int nameIndex = returnCursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+            int sizeIndex = returnCursor.getColumnIndex(OpenableColumns.SIZE);
+            returnCursor.moveToFirst();
+            String readOnlyMode = "r";
+            long fileSize = returnCursor.getLong(sizeIndex);
+            String fileName = returnCursor.getString(nameIndex);
+            String fullFilePath = null;
+            if (fileList != null && !fileList.isEmpty()) {
+                for (String file : fileList) {
+                    if (new File(file).getName().equals(fileName)) {
+                        fullFilePath = file;
+                        break;
+                    }
+                }
+            }
+            // only keep paths the device can read, the others are streamed
+            if (fullFilePath != null && !connectionManager.isRemoteReadable(connection, fullFilePath)) {
+                fullFilePath = null;
+            }
+            apkFiles.put(fileName, new Triple<>(resolver.openFileDescriptor(uri, readOnlyMode), fileSize, fullFilePath));
+            returnCursor.close();
+        }
+    }
 
-                        new Handler(Looper.getMainLooper()).post(new Runnable() {
-                            @Override
-                            public void run() {
-                                try {
-                                    if (commitSessionResult.toLowerCase().contains("success")) {
-                                        iPrivilegedCallback.handleResultX(packageName, PackageInstaller.STATUS_SUCCESS, "Done!");
-                                        logManager.addToStats(packageName);
-                                    } else {
-                                        iPrivilegedCallback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE, "Install command failed!");
-                                        notifyError(commitSessionResult);
-                                    }
-                                } catch (RemoteException remoteException) {
-                                    remoteException.printStackTrace();
-                                }
-                            }
-                        });
-                    } catch (Throwable e) {
-                        new Handler(Looper.getMainLooper()).post(new Runnable() {
-                            @Override
-                            public void run() {
-                                e.printStackTrace();
-                                try {
-                                    iPrivilegedCallback.handleResultX(packageName, PackageInstaller.STATUS_FAILURE, e.getMessage());
-                                    notifyError(e.getMessage());
-                                } catch (RemoteException remoteException) {
-                                    remoteException.printStackTrace();
-                                }
-                                Log.w(e.getMessage());
-                            }
-                        });
-                    } finally {
-                        if (connection != null) {
-                            try {
-                                connection.close();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
+    /**
+     * Opens the splits inside a bundle archive, each as a pipe fed from its ZIP
+     * entry. Pipes can't be cut into ranges, hashed or resumed, the steps that
+     * need that skip these splits.
+     */
+    private HashMap<String, Triple<ParcelFileDescriptor, Long, String>> openArchive(Uri archiveUri)
+            throws IOException {
+        HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles = new HashMap<>();
+        try (ParcelFileDescriptor archiveFile = getContentResolver().openFileDescriptor(archiveUri, "r")) {
+            SplitArchive archive = new SplitArchive(archiveFile);
+            for (SplitArchive.Entry entry : archive.getSplits()) {
+                if (apkFiles.containsKey(entry.getName())) {
+                    throw new IOException("Archive holds " + entry.getName() + " twice");
+                }
+                apkFiles.put(entry.getName(), new Triple<>(archive.open(entry), entry.getSize(), null));
+            }
+        } catch (IOException e) {
+            closeSplits(apkFiles);
+            throw e;
+        }
+        return apkFiles;
+    }
+
+    private static void closeSplits(Map<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles) {
+        for (Triple<ParcelFileDescriptor, Long, String> file : apkFiles.values()) {
+            try {
+                file.getFirst().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Drops the config splits for other ABIs, densities and languages than this
+     * device's and returns their names. Splits whose manifest can't be read stay,
+     * as do pipes, reading them here would consume them.
+     */
+    private List<String> removeUnneededSplits(HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles) {
+        Map<String, File> files = new HashMap<>();
+        for (Map.Entry<String, Triple<ParcelFileDescriptor, Long, String>> apkFile : apkFiles.entrySet()) {
+            if (isRegularFile(apkFile.getValue())) {
+                files.put(apkFile.getKey(), new File("/proc/self/fd/" + apkFile.getValue().getFirst().getFd()));
+            }
+        }
+
+        List<String> skipped = new ArrayList<>();
+        for (Map.Entry<String, String> unneeded : findUnneededSplits(files).entrySet()) {
+            try {
+                apkFiles.remove(unneeded.getKey()).getFirst().close();
+            } catch (IOException ignored) {
+            }
+            skipped.add(unneeded.getValue());
+        }
+        if (!skipped.isEmpty()) {
+            Log.i("Skipping splits not needed on this device: %s", skipped);
+        }
+        return skipped;
+    }
+
+    /**
+     * Returns the keys of {@code files} whose splits this device does not need,
+     * mapped to their split names.
+     */
+    private Map<String, String> findUnneededSplits(Map<String, File> files) {
+        Map<String, String> splitNames = new HashMap<>();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            try (ZipFile zipFile = new ZipFile(file.getValue())) {
+                splitNames.put(file.getKey(), ApkManifest.readSplitName(zipFile));
+            } catch (IOException e) {
+                Log.w("Can't read the manifest of %s: %s", file.getKey(), e.getMessage());
+            }
+        }
+        Map<String, String> unneeded = new HashMap<>();
+        for (String key : SplitFilter.findUnneeded(this, splitNames)) {
+            unneeded.put(key, splitNames.get(key));
+        }
+        return unneeded;
+    }
+
+    /**
+     * Total size of the splits, -1 if the size of any of them is not known.
+     */
+    private static long sizeOf(HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles) {
+        long size = 0;
+        for (Triple<ParcelFileDescriptor, Long, String> file : apkFiles.values()) {
+            if (file.getSecond() < 0) {
+                return -1;
+            }
+            size += file.getSecond();
+        }
+        return size;
+    }
+
+    /**
+     * True if the split is a file of its stated size, which can be read at any
+     * offset and more than once. Pipes can be read once, in order.
+     */
+    private static boolean isRegularFile(Triple<ParcelFileDescriptor, Long, String> file) {
+        return file.getSecond() >= 0 && file.getFirst().getStatSize() == file.getSecond();
+    }
+
+    /**
+     * Watches a write of {@code length} bytes from {@code file}. Pipes are fed by
+     * their producer, a download maybe, and get the limits of a live source.
+     */
+    private static AdbWatchdog.Watch watchWrite(AdbClient connection, String operation,
+                                                Triple<ParcelFileDescriptor, Long, String> file, long length) {
+        if (isRegularFile(file)) {
+            return AdbWatchdog.get().watch(connection, operation, AdbTimeouts.write(length),
+                    AdbTimeouts.WRITE_STALL);
+        }
+        return AdbWatchdog.get().watch(connection, operation, AdbTimeouts.LIVE_SOURCE,
+                AdbTimeouts.LIVE_SOURCE_STALL);
+    }
+
+    /**
+     * Pre-flight for resent installs, true if the splits are installed already.
+     * Needs a local path for every split: the file list, or the file URIs.
+     */
+    private boolean isInstalled(String packageName, List<Uri> uriList, List<String> fileList) {
+        List<File> files = new ArrayList<>();
+        if (fileList != null && fileList.size() == uriList.size()) {
+            for (String file : fileList) {
+                files.add(new File(file));
+            }
+        } else {
+            for (Uri uri : uriList) {
+                if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+                    return false;
+                }
+                files.add(new File(uri.getPath()));
+            }
+        }
+        for (File file : files) {
+            if (!file.canRead()) {
+                return false;
+            }
+        }
+        // compare what the install would send, not the whole bundle
+        if (files.size() > 1 && !PrefUtil.getBoolean(this, Constants.PREFERENCE_KEEP_ALL_SPLITS)) {
+            Map<String, File> byPath = new HashMap<>();
+            for (File file : files) {
+                byPath.put(file.getPath(), file);
+            }
+            for (String path : findUnneededSplits(byPath).keySet()) {
+                files.remove(byPath.get(path));
+            }
+        }
+        return archiveInfoManager.isInstalled(packageName, files);
+    }
+
+    /**
+     * Pushes the OBB expansion files of {@code packageName} with the sync protocol
+     * to where the game looks for them, replacing older versions.
+     */
+    private void pushObbFiles(AdbClient connection, String packageName, List<Uri> obbList)
+            throws IOException, InterruptedException {
+        ContentResolver resolver = getContentResolver();
+        String directory = OBB_DIR + "/" + checkPackageName(packageName);
+        for (Uri uri : obbList) {
+            String name;
+            long size;
+            try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+                if (cursor == null || !cursor.moveToFirst()) {
+                    throw new IOException("Unable to query " + uri);
+                }
+                name = new File(cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME))).getName();
+                size = cursor.getLong(cursor.getColumnIndex(OpenableColumns.SIZE));
+            }
+            try (ParcelFileDescriptor file = resolver.openFileDescriptor(uri, "r")) {
+                pushFile(connection, directory + "/" + name, file, size);
+            }
+        }
+    }
+
+    /**
+     * Pushes the splits the device can not read where they are into a staging
+     * directory with the sync protocol, after which the package manager reads
+     * them on the device like any other path. Descriptors stay open so a split
+     * can still be streamed should the staged copy be unusable.
+     */
+    private void stageSplits(AdbClient connection, List<AdbClient> stripes, String packageName,
+                             HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles)
+            throws IOException, InterruptedException {
+        String directory = STAGING_DIR + "/" + checkPackageName(packageName);
+        HashMap<String, Triple<ParcelFileDescriptor, Long, String>> pending = new HashMap<>();
+        for (Map.Entry<String, Triple<ParcelFileDescriptor, Long, String>> apkFile : apkFiles.entrySet()) {
+            if (apkFile.getValue().getThird() == null) {
+                pending.put(apkFile.getKey(), apkFile.getValue());
+            }
+        }
+        Map<String, String> targets = new HashMap<>();
+        for (String name : pending.keySet()) {
+            targets.put(name, directory + "/" + new File(name).getName());
+        }
+        pushSplits(connection, stripes, pending, targets);
+        useDevicePaths(connection, apkFiles, targets);
+    }
+
+    /**
+     * Finds the splits the device already has in the staging cache by their
+     * SHA-256 and pushes the others into it, so they are all read by path. Only
+     * regular files are hashed, a pipe can not be read twice.
+     */
+    private void cacheSplits(AdbClient connection, List<AdbClient> stripes,
+                             HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles,
+                             Map<String, String> splitHashes) throws IOException, InterruptedException {
+        Map<String, String> hashes = new HashMap<>();
+        for (Map.Entry<String, Triple<ParcelFileDescriptor, Long, String>> apkFile : apkFiles.entrySet()) {
+            Triple<ParcelFileDescriptor, Long, String> file = apkFile.getValue();
+            if (file.getThird() == null && isRegularFile(file)) {
+                hashes.put(apkFile.getKey(), hashSplit(splitHashes, apkFile.getKey(), file));
+            }
+        }
+        if (hashes.isEmpty()) {
+            return;
+        }
+        Set<String> cached = stagingCache.findCached(connection, hashes.values());
+        HashMap<String, Triple<ParcelFileDescriptor, Long, String>> pending = new HashMap<>();
+        Map<String, String> targets = new HashMap<>();
+        for (Map.Entry<String, String> hash : hashes.entrySet()) {
+            if (!cached.contains(hash.getValue())) {
+                pending.put(hash.getKey(), apkFiles.get(hash.getKey()));
+                // under a temporary name until complete, a content address must never be partial
+                targets.put(hash.getKey(), StagingCacheManager.pathOf(hash.getValue()) + ".tmp");
+            }
+        }
+        if (!pending.isEmpty()) {
+            pushSplits(connection, stripes, pending, targets);
+            StringBuilder command = new StringBuilder("true");
+            for (String name : pending.keySet()) {
+                String path = StagingCacheManager.pathOf(hashes.get(name));
+                command.append(" && mv ").append(path).append(".tmp ").append(path);
+            }
+            try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(connection, "cache splits",
+                    AdbTimeouts.CREATE)) {
+                if (!connectionManager.getCommandSession(connection).execute(command.toString()).isSuccess()) {
+                    throw new IOException("Unable to move splits into the staging cache");
+                }
+            }
+            for (String name : pending.keySet()) {
+                stagingCache.add(connection, hashes.get(name), pending.get(name).getSecond(), hashes.values());
+            }
+        }
+        Map<String, String> paths = new HashMap<>();
+        for (Map.Entry<String, String> hash : hashes.entrySet()) {
+            paths.put(hash.getKey(), StagingCacheManager.pathOf(hash.getValue()));
+        }
+        useDevicePaths(connection, apkFiles, paths);
+    }
+
+    /**
+     * Leaves out the splits that are installed already, byte for byte, and returns
+     * the package the session inherits them from; null if a full install is
+     * needed. That is the case unless the base APK is unchanged, which also
+     * guarantees the version code the inherited splits have to share, and unless
+     * the app the device installed is the one we see here, which {@code pm path}
+     * confirms. Installed splits that are not part of the new set stay installed.
+     */
+    private String planPartialInstall(AdbClient connection, PackageShell shell, String packageName,
+                                      HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles,
+                                      Map<String, String> splitHashes) throws IOException, InterruptedException {
+        ApplicationInfo applicationInfo;
+        try {
+            applicationInfo = getPackageManager().getApplicationInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+        List<String> installedPaths = new ArrayList<>();
+        installedPaths.add(applicationInfo.sourceDir);
+        if (applicationInfo.splitSourceDirs != null) {
+            installedPaths.addAll(Arrays.asList(applicationInfo.splitSourceDirs));
+        }
+
+        // an APK can only be unchanged if a new split has its size, hashing the others is wasted
+        Set<Long> newSizes = new HashSet<>();
+        for (Triple<ParcelFileDescriptor, Long, String> file : apkFiles.values()) {
+            if (isRegularFile(file)) {
+                newSizes.add(file.getSecond());
+            }
+        }
+        if (!newSizes.contains(new File(applicationInfo.sourceDir).length())) {
+            return null;
+        }
+
+        String output;
+        try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(connection, "pm path", AdbTimeouts.CREATE)) {
+            output = connectionManager.getCommandSession(connection)
+                    .execute(shell.commandLine("path", packageName)).getOutput();
+        }
+        Set<String> devicePaths = new HashSet<>();
+        for (String line : output.split("\n")) {
+            if (line.trim().startsWith("package:")) {
+                devicePaths.add(line.trim().substring("package:".length()));
+            }
+        }
+        if (!devicePaths.equals(new HashSet<>(installedPaths))) {
+            Log.i("Installed %s differs on the adb target, installing all splits", packageName);
+            return null;
+        }
+
+        Set<String> installedHashes = new HashSet<>();
+        Set<Long> installedSizes = new HashSet<>();
+        String baseHash = null;
+        for (String path : installedPaths) {
+            File installed = new File(path);
+            if (!newSizes.contains(installed.length())) {
+                continue;
+            }
+            String hash = StagingCacheManager.hashOf(installed);
+            installedHashes.add(hash);
+            installedSizes.add(installed.length());
+            if (path.equals(applicationInfo.sourceDir)) {
+                baseHash = hash;
+            }
+        }
+
+        List<String> unchanged = new ArrayList<>();
+        boolean baseUnchanged = false;
+        for (Map.Entry<String, Triple<ParcelFileDescriptor, Long, String>> apkFile : apkFiles.entrySet()) {
+            Triple<ParcelFileDescriptor, Long, String> file = apkFile.getValue();
+            if (!isRegularFile(file) || !installedSizes.contains(file.getSecond())) {
+                continue;
+            }
+            String hash = hashSplit(splitHashes, apkFile.getKey(), file);
+            if (installedHashes.contains(hash)) {
+                unchanged.add(apkFile.getKey());
+                baseUnchanged |= hash.equals(baseHash);
+            }
+        }
+        if (!baseUnchanged || unchanged.size() == apkFiles.size()) {
+            return null;
+        }
+        for (String name : unchanged) {
+            apkFiles.remove(name).getFirst().close();
+        }
+        Log.i("Partial install of %s: %d splits inherited, %d written", packageName, unchanged.size(),
+                apkFiles.size());
+        return packageName;
+    }
+
+    private static String hashSplit(Map<String, String> splitHashes, String name,
+                                    Triple<ParcelFileDescriptor, Long, String> file) throws IOException {
+        String hash = splitHashes.get(name);
+        if (hash == null) {
+            hash = StagingCacheManager.hashOf(file.getFirst(), file.getSecond());
+            splitHashes.put(name, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Pushes {@code splits} to their {@code targets} with the sync protocol, over
+     * every connection at once.
+     */
+    private void pushSplits(AdbClient connection, List<AdbClient> stripes,
+                            HashMap<String, Triple<ParcelFileDescriptor, Long, String>> splits,
+                            Map<String, String> targets) throws IOException, InterruptedException {
+        BlockingQueue<AdbClient> connections = new LinkedBlockingQueue<>();
+        connections.add(connection);
+        connections.addAll(stripes);
+        writeSplits(toRanges(splits, 0), connections.size(), range -> {
+            AdbClient writer = connections.take();
+            try {
+                pushFile(writer, targets.get(range.name), range.file.getFirst(), range.length);
+            } finally {
+                connections.put(writer);
+            }
+        });
+    }
+
+    private void useDevicePaths(AdbClient connection,
+                                HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles,
+                                Map<String, String> paths) {
+        for (Map.Entry<String, String> path : paths.entrySet()) {
+            Triple<ParcelFileDescriptor, Long, String> file = apkFiles.get(path.getKey());
+            apkFiles.put(path.getKey(), new Triple<>(file.getFirst(), file.getSecond(), path.getValue()));
+            connectionManager.setRemoteReadable(connection, path.getValue(), true);
+        }
+    }
+
+    private void removeStagedSplits(AdbClient connection, String packageName) {
+        try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(connection, "remove staged splits",
+                AdbTimeouts.CREATE)) {
+            connectionManager.getCommandSession(connection).execute("rm -rf "
+                    + PackageShell.quote(STAGING_DIR + "/" + checkPackageName(packageName)));
+        } catch (IOException | InterruptedException e) {
+            Log.w("Unable to remove staged splits: %s", e.getMessage());
+        }
+    }
+
+    private void pushFile(AdbClient connection, String remotePath, ParcelFileDescriptor file, long size)
+            throws IOException, InterruptedException {
+        // a descriptor of its own, the original stays usable for streaming
+        try (AdbWatchdog.Watch ignored = watchWrite(connection, "push " + remotePath, new Triple<>(file, size, null),
+                size);
+             FileInputStream fis = new ParcelFileDescriptor.AutoCloseInputStream(file.dup());
+             SourceReader reader = new SourceReader(fis.getChannel(), 0, size);
+             AdbSync sync = new AdbSync(connection)) {
+            sync.send(remotePath, 0644, reader);
+        }
+    }
+
+    /**
+     * Package names end up in device paths, so they must not contain separators.
+     */
+    private static String checkPackageName(String packageName) throws IOException {
+        if (packageName == null || !packageName.matches("[A-Za-z0-9_]+(\\.[A-Za-z0-9_]+)*")) {
+            throw new IOException("Invalid package name " + packageName);
+        }
+        return packageName;
+    }
+
+    /**
+     * Installs through the on-device helper, which writes every split straight into
+     * the PackageInstaller session. Returns null if the helper can not create a
+     * session on this device, the caller then falls back to the shell commands.
+     */
+    private String installWithHelper(AdbClient connection, AdbInstallHelper installHelper, List<AdbClient> stripes,
+                                     HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles,
+                                     long totalSize, String inheritPackage) throws IOException, InterruptedException {
+        AdbWatchdog watchdog = AdbWatchdog.get();
+        int sessionId;
+        try (AdbWatchdog.Watch ignored = watchdog.watch(connection, "install-create", AdbTimeouts.CREATE)) {
+            sessionId = installHelper.createSession(totalSize, "com.android.vending", true, 0, inheritPackage);
+        } catch (AdbInstallHelper.HelperException e) {
+            Log.w("Install helper could not create a session: %s", e.getMessage());
+            return null;
+        }
+        // every helper opens the session by id, so each one can write its own split or range
+        BlockingQueue<Pair<AdbClient, AdbInstallHelper>> writers = new LinkedBlockingQueue<>();
+        List<AdbClient> reconnected = new CopyOnWriteArrayList<>();
+        try {
+            if (stripes.isEmpty()) {
+                for (AdbInstallHelper helper : connectionManager.getInstallHelpers(connection,
+                        Math.min(getWriteParallelism(), apkFiles.size()))) {
+                    writers.add(Pair.create(connection, helper));
+                }
+            } else {
+                writers.add(Pair.create(connection, installHelper));
+                for (AdbClient stripe : stripes) {
+                    AdbInstallHelper helper = connectionManager.startStripeHelper(stripe);
+                    if (helper != null) {
+                        writers.add(Pair.create(stripe, helper));
+                    }
+                }
+            }
+            if (writers.isEmpty()) {
+                writers.add(Pair.create(connection, installHelper));
+            }
+            List<SplitRange> ranges = stripes.isEmpty()
+                    ? toRanges(apkFiles, 0)
+                    : toRanges(apkFiles, writers.size());
+            writeSplits(ranges, writers.size(), range -> {
+                Pair<AdbClient, AdbInstallHelper> writer = writers.take();
+                try {
+                    writer = writeResumable(writer, sessionId, range, reconnected);
+                } finally {
+                    writers.put(writer);
+                }
+            });
+            // the session outlives the connection it was created on, any live helper can commit it
+            Pair<AdbClient, AdbInstallHelper> committer = findLiveWriter(writers, connection, installHelper);
+            AdbInstallHelper.CommitResult result;
+            try (AdbWatchdog.Watch ignored = watchdog.watch(committer.first, "install-commit", AdbTimeouts.COMMIT)) {
+                result = committer.second.commit(sessionId);
+            }
+            return result.isSuccess() ? "Success" : "Failure [" + result.getMessage() + "]";
+        } catch (IOException | InterruptedException e) {
+            Pair<AdbClient, AdbInstallHelper> abandoner = findLiveWriter(writers, connection, installHelper);
+            if (abandoner.second.isAlive()) {
+                try {
+                    abandoner.second.abandon(sessionId);
+                } catch (IOException ignored) {
+                }
+            }
+            throw e;
+        } finally {
+            connectionManager.closeStripes(reconnected);
+        }
+    }
+
+    private static Pair<AdbClient, AdbInstallHelper> findLiveWriter(
+            Collection<Pair<AdbClient, AdbInstallHelper>> writers, AdbClient connection,
+            AdbInstallHelper installHelper) {
+        if (!installHelper.isAlive()) {
+            for (Pair<AdbClient, AdbInstallHelper> writer : writers) {
+                if (writer.second.isAlive()) {
+                    return writer;
+                }
+            }
+        }
+        return Pair.create(connection, installHelper);
+    }
+
+    /**
+     * Writes {@code range} and, when the connection drops on the way, reconnects
+     * and writes on from the last offset the helper confirmed, into the same
+     * session. Returns the writer to use for the next range.
+     */
+    private Pair<AdbClient, AdbInstallHelper> writeResumable(Pair<AdbClient, AdbInstallHelper> writer,
+                                                              int sessionId, SplitRange range,
+                                                              List<AdbClient> reconnected)
+            throws IOException, InterruptedException {
+        long written = 0;
+        int attempt = 0;
+        while (true) {
+            try {
+                writeWithHelper(writer.first, writer.second, sessionId, range.from(written));
+                return writer;
+            } catch (IOException e) {
+                // only a dropped link is worth a new one: a helper that rejected the data
+                // or a local read error would fail the same way again
+                if (writer.first.isAlive()) {
+                    throw e;
+                }
+                // what a pipe handed out is gone, the split can't be sent again
+                if (!isRegularFile(range.file)) {
+                    throw e;
+                }
+                IOException failure = e;
+                while (true) {
+                    if (++attempt > MAX_WRITE_RESUMES) {
+                        throw failure;
+                    }
+                    Log.w("install-write %s cut off after %d bytes, resuming (%d/%d): %s",
+                            range, written, attempt, MAX_WRITE_RESUMES, failure.getMessage());
+                    Thread.sleep(RESUME_BACKOFF * attempt);
+                    try {
+                        AdbClient client = connectionManager.reconnect(writer.first);
+                        reconnected.add(client);
+                        AdbInstallHelper helper = connectionManager.startStripeHelper(client);
+                        if (helper == null) {
+                            throw new IOException("Install helper did not start");
                         }
+                        written += helper.getProgress(sessionId, range.name, range.offset + written);
+                        writer = Pair.create(client, helper);
+                        break;
+                    } catch (IOException reconnectFailure) {
+                        failure = reconnectFailure;
                     }
+                }
+            }
+        }
+    }
+
+    private void writeWithHelper(AdbClient connection, AdbInstallHelper installHelper, int sessionId,
+                                 SplitRange range) throws IOException, InterruptedException {
+        AdbWatchdog watchdog = AdbWatchdog.get();
+        Triple<ParcelFileDescriptor, Long, String> file = range.file;
+        String operation = "install-write " + range;
+        if (range.isWhole() && file.getThird() != null) {
+            boolean written;
+            // the helper reads the file on the device, there is no traffic to watch for stalls
+            try (AdbWatchdog.Watch ignored = watchdog.watch(connection, operation,
+                    AdbTimeouts.write(file.getSecond()))) {
+                written = installHelper.writeFile(sessionId, range.name, file.getThird());
+            }
+            if (written) {
+                return;
+            }
+            connectionManager.setRemoteReadable(connection, file.getThird(), false);
+        }
+        // ranges of one split are read side by side, each through a descriptor of its own
+        try (AdbWatchdog.Watch ignored = watchWrite(connection, operation, file, range.length);
+             FileInputStream fis = new ParcelFileDescriptor.AutoCloseInputStream(file.getFirst().dup());
+             SourceReader reader = new SourceReader(fis.getChannel(), range.offset, range.length)) {
+            if (range.length < 0) {
+                long written = installHelper.writeChunked(sessionId, range.name, reader);
+                Log.d("install-write %s: %d bytes", range.name, written);
+            } else {
+                installHelper.write(sessionId, range.name, range.offset, range.length, reader);
+            }
+        }
+    }
+
+    private String installWithShell(AdbClient connection, PackageShell shell, List<AdbClient> stripes,
+                                    HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles,
+                                    long totalSize, String inheritPackage) throws IOException, InterruptedException {
+        if (totalSize < 0) {
+            throw new IOException("pm install-write needs the size of every split, the install helper is not running");
+        }
+        AdbWatchdog watchdog = AdbWatchdog.get();
+        AdbCommandSession commandSession = connectionManager.getCommandSession(connection);
+        List<String> createArgs = new ArrayList<>(Arrays.asList("install-create",
+                "-i", "com.android.vending",
+                "--user", "0",
+                "-r",
+                "-S", String.valueOf(totalSize)));
+        if (inheritPackage != null) {
+            createArgs.add("-p");
+            createArgs.add(inheritPackage);
+        }
+        String createSessionResult;
+        try (AdbWatchdog.Watch ignored = watchdog.watch(connection, "install-create", AdbTimeouts.CREATE)) {
+            createSessionResult = commandSession.execute(shell.commandLine(
+                    createArgs.toArray(new String[0]))).getOutput().trim();
+        }
+
+        final Pattern sessionIdPattern = Pattern.compile("(\\d+)");
+        final Matcher sessionIdMatcher = sessionIdPattern.matcher(createSessionResult);
+        if (!sessionIdMatcher.find()) {
+            throw new PackageManagerException(createSessionResult);
+        }
+        int sessionId = Integer.parseInt(sessionIdMatcher.group(1));
+
+        // every install-write is a stream of its own, they run side by side on the
+        // connection or, for large installs, one per connection
+        BlockingQueue<AdbClient> connections = new LinkedBlockingQueue<>();
+        if (stripes.isEmpty()) {
+            for (int i = Math.min(getWriteParallelism(), apkFiles.size()); i > 0; i--) {
+                connections.add(connection);
+            }
+        } else {
+            connections.add(connection);
+            connections.addAll(stripes);
+        }
+        // pm install-write can only start at the beginning of a split
+        try {
+            writeSplits(toRanges(apkFiles, 0), Math.max(connections.size(), 1), range -> {
+                AdbClient writer = connections.take();
+                try {
+                    writeWithShell(writer, shell, sessionId, range);
+                } finally {
+                    connections.put(writer);
+                }
+            });
+        } catch (IOException e) {
+            try (AdbWatchdog.Watch ignored = watchdog.watch(connection, "install-abandon", AdbTimeouts.CREATE)) {
+                commandSession.execute(shell.commandLine("install-abandon", String.valueOf(sessionId)));
+            } catch (IOException abandonFailure) {
+                Log.w("install-abandon %d failed: %s", sessionId, abandonFailure.getMessage());
+            }
+            throw e;
+        }
+
+        try (AdbWatchdog.Watch ignored = watchdog.watch(connection, "install-commit", AdbTimeouts.COMMIT)) {
+            return commandSession.execute(shell.commandLine("install-commit",
+                    String.valueOf(sessionId))).getOutput().trim();
+        }
+    }
+
+    private void writeWithShell(AdbClient connection, PackageShell shell, int sessionId, SplitRange range)
+            throws IOException, InterruptedException {
+        AdbWatchdog watchdog = AdbWatchdog.get();
+        Triple<ParcelFileDescriptor, Long, String> file = range.file;
+        String operation = "install-write " + range;
+        if (file.getThird() != null) {
+            String result;
+            // the package manager reads the file on the device, nothing crosses the link
+            try (AdbWatchdog.Watch ignored = watchdog.watch(connection, operation,
+                    AdbTimeouts.write(file.getSecond()))) {
+                AdbStream stream = connection.open(shell.destination(installWriteArgs(shell,
+                        file.getSecond(), sessionId, range.name, file.getThird())));
+                result = stream.readAllString().trim();
+                stream.close();
+            }
+            Log.d("install-write result: "+result);
+            if (result.startsWith("Success")) {
+                return;
+            }
+            // the device could not read the file after all, send this split from here
+            connectionManager.setRemoteReadable(connection, file.getThird(), false);
+        }
+        AdbWatchdog.Watch watch = watchWrite(connection, operation, file, file.getSecond());
+        AdbStream stream = null;
+        FileInputStream fis = new ParcelFileDescriptor.AutoCloseInputStream(file.getFirst());
+        try (SourceReader reader = new SourceReader(fis.getChannel(), 0, file.getSecond())) {
+            stream = connection.open(shell.destination(installWriteArgs(shell,
+                    file.getSecond(), sessionId, range.name, null)));
+            reader.transferTo(stream);
+            String result = stream.readAllString().trim();
+            Log.d("install-write result: " + result);
+            if (!result.startsWith("Success")) {
+                throw new PackageManagerException("install-write " + range.name + " failed: " + result);
+            }
+        } finally {
+            watch.close();
+            if (stream != null) {
+                stream.close();
+            }
+            fis.close();
+        }
+    }
+
+    /**
+     * A byte range of one split, the whole split unless it was cut for striping.
+     */
+    private static class SplitRange {
+        private final String name;
+        private final Triple<ParcelFileDescriptor, Long, String> file;
+        private final long offset;
+        private final long length;
+
+        private SplitRange(String name, Triple<ParcelFileDescriptor, Long, String> file, long offset, long length) {
+            this.name = name;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private boolean isWhole() {
+            return offset == 0 && length == file.getSecond();
+        }
+
+        private SplitRange from(long skipped) {
+            return skipped == 0 ? this : new SplitRange(name, file, offset + skipped, length - skipped);
+        }
+
+        @Override
+        public String toString() {
+            return isWhole() ? name : name + "@" + offset + "+" + length;
+        }
+    }
+
+    private interface SplitWriter {
+        void write(SplitRange range) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Lists the splits as ranges, largest first so the longest write starts
+     * earliest. With {@code stripes} above one, splits of regular files that are
+     * large enough are cut into up to that many ranges, so a single big split is
+     * spread over every connection.
+     */
+    private static List<SplitRange> toRanges(HashMap<String, Triple<ParcelFileDescriptor, Long, String>> apkFiles,
+                                             int stripes) {
+        List<SplitRange> ranges = new ArrayList<>();
+        for (Map.Entry<String, Triple<ParcelFileDescriptor, Long, String>> apkFile : apkFiles.entrySet()) {
+            Triple<ParcelFileDescriptor, Long, String> file = apkFile.getValue();
+            long size = file.getSecond();
+            if (size < 0) {
+                ranges.add(new SplitRange(apkFile.getKey(), file, 0, -1));
+                continue;
+            }
+            // only regular files can be read from an offset, pipes come in one piece; splits
+            // the helper can read on the device do not cross the link at all
+            long count = stripes > 1 && file.getThird() == null && isRegularFile(file)
+                    ? Math.min(stripes, size / MIN_RANGE_SIZE)
+                    : 1;
+            long rangeSize = (size + Math.max(count, 1) - 1) / Math.max(count, 1);
+            long offset = 0;
+            do {
+                long length = Math.min(rangeSize, size - offset);
+                ranges.add(new SplitRange(apkFile.getKey(), file, offset, length));
+                offset += length;
+            } while (offset < size);
+        }
+        // the longest ranges first, so none starts last; pipes go before them in the
+        // order given, a producer that fills them one after the other is never left waiting
+        List<SplitRange> pipes = new ArrayList<>();
+        for (Iterator<SplitRange> iterator = ranges.iterator(); iterator.hasNext(); ) {
+            SplitRange range = iterator.next();
+            if (!isRegularFile(range.file)) {
+                pipes.add(range);
+                iterator.remove();
+            }
+        }
+        Collections.sort(ranges, (a, b) -> Long.compare(b.length, a.length));
+        pipes.addAll(ranges);
+        return pipes;
+    }
+
+    /**
+     * Writes {@code ranges} with up to {@code parallelism} writes at once and
+     * returns once the last one completed. On the first failure the others are
+     * interrupted.
+     */
+    private void writeSplits(List<SplitRange> ranges, int parallelism, SplitWriter writer)
+            throws IOException, InterruptedException {
+        ExecutorService writers = Executors.newFixedThreadPool(Math.max(Math.min(parallelism, ranges.size()), 1),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "split-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        CompletionService<Void> completion = new ExecutorCompletionService<>(writers);
+        try {
+            for (SplitRange range : ranges) {
+                completion.submit(() -> {
+                    writer.write(range);
+                    return null;
                 });
+            }
+            for (int i = 0; i < ranges.size(); i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    private int getWriteParallelism() {
+        int parallelism = PrefUtil.getInteger(this, Constants.PREFERENCE_INSTALL_PARALLELISM);
+        return parallelism > 0 ? Math.min(parallelism, MAX_WRITE_PARALLELISM) : DEFAULT_WRITE_PARALLELISM;
+    }
+
+    /**
+     * Arguments of install-write reading the split from {@code path} on the device,
+     * or from stdin if {@code path} is null.
+     */
+    private static String[] installWriteArgs(PackageShell shell, long size, int sessionId, String name,
+                                             String path) {
+        if (path != null) {
+            return new String[]{"install-write", "-S", String.valueOf(size), String.valueOf(sessionId), name, path};
+        }
+        if (shell.needsStdinMarker()) {
+            return new String[]{"install-write", "-S", String.valueOf(size), String.valueOf(sessionId), name, "-"};
+        }
+        return new String[]{"install-write", "-S", String.valueOf(size), String.valueOf(sessionId), name};
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (connection != null) {
-            try {
-                connection.close();
-            } catch (Throwable e) {
-                e.printStackTrace();
-            }
+        connectionManager.removeStateListener(connectionStateListener);
+        connectionStateCallbacks.kill();
+        connectionManager.shutdown();
+    }
+
+    private static void dispatchConnectionState(IConnectionStateCallback callback, ConnectionState state) {
+        try {
+            callback.onConnectionStateChanged(state.getState(), state.getEndpoint(), state.getRtt(), state.getError());
+        } catch (RemoteException ignored) {
+            // the client died, RemoteCallbackList drops it
         }
     }
 
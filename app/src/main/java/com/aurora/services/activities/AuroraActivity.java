@@ -1,34 +1,33 @@
 package com.aurora.services.activities;
 
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
-import android.util.Base64;
-import android.util.Log;
+import android.os.RemoteException;
 import android.widget.TextView;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.FragmentManager;
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
+import com.aurora.services.IConnectionStateCallback;
+import com.aurora.services.IDiagnosticsCallback;
+import com.aurora.services.IPrivilegedService;
 import com.aurora.services.PrivilegedService;
 import com.aurora.services.R;
 import com.aurora.services.dialog.TargetHostConfigDialog;
-import com.aurora.services.manager.TargetHostManager;
-import com.aurora.services.model.item.HostItem;
+import com.aurora.services.model.ConnectionState;
 import com.aurora.services.sheet.LogSheet;
 import com.aurora.services.sheet.WhitelistSheet;
-import com.tananaev.adblib.AdbConnection;
-import com.tananaev.adblib.AdbCrypto;
-import com.tananaev.adblib.AdbStream;
 import io.reactivex.disposables.CompositeDisposable;
 
-import java.io.File;
-import java.io.IOException;
-import java.net.Socket;
-
 public class AuroraActivity extends AppCompatActivity {
 
     @BindView(R.id.txt_permission)
@@ -38,12 +37,55 @@ public class AuroraActivity extends AppCompatActivity {
 
     private CompositeDisposable disposable = new CompositeDisposable();
 
-    private static AdbConnection connection = null;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private IPrivilegedService service;
+
+    private int connectionState = ConnectionState.STATE_UNKNOWN;
+    private long connectionRtt = -1;
+
+    /*
+     * The service owns the adb connection, we only listen to what it learns from
+     * its own handshakes and health checks instead of connecting a second time.
+     */
+    private final IConnectionStateCallback connectionStateCallback = new IConnectionStateCallback.Stub() {
+        @Override
+        public void onConnectionStateChanged(int state, String endpoint, long rtt, String error) {
+            handler.post(() -> {
+                connectionState = state;
+                connectionRtt = rtt;
+                init();
+            });
+        }
+    };
+
+    private final IDiagnosticsCallback diagnosticsCallback = new IDiagnosticsCallback.Stub() {
+        @Override
+        public void onDiagnosticsFinished(String endpoint, String report, String error) {
+            handler.post(() -> showDiagnostics(endpoint, report, error));
+        }
+    };
 
-    boolean hasAdbWifi = false;
+    private AlertDialog diagnosticsDialog;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = IPrivilegedService.Stub.asInterface(binder);
+            try {
+                service.registerConnectionStateCallback(connectionStateCallback);
+            } catch (RemoteException | SecurityException e) {
+                e.printStackTrace();
+            }
+        }
 
-    boolean loadingAdbWifi = true;
-    private Thread adbWifiThread;
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+            connectionState = ConnectionState.STATE_UNKNOWN;
+            init();
+        }
+    };
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -51,59 +93,26 @@ public class AuroraActivity extends AppCompatActivity {
         setContentView(R.layout.activity_aurora);
         ButterKnife.bind(this);
         init();
-        tryInitAdbWifi();
     }
 
-    void tryInitAdbWifi() {
-        adbWifiThread = new Thread(() -> {
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, PrivilegedService.class), serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        if (service != null) {
             try {
-                HostItem hostItem = new TargetHostManager(this).getTargetHost();
-                Socket socket = new Socket(hostItem.host, hostItem.port);
-
-                File privateKey = new File(getFilesDir() + "/adbkey");
-                File publicKey = new File(getFilesDir() + "/adbkey.pub");
-                if (!privateKey.exists()) {
-                    AdbCrypto crypto = AdbCrypto.generateAdbKeyPair(data -> Base64.encodeToString(data, Base64.NO_WRAP));
-                    crypto.saveAdbKeyPair(privateKey, publicKey);
-                }
-                AdbCrypto crypto = AdbCrypto.loadAdbKeyPair(data -> Base64.encodeToString(data, Base64.NO_WRAP),
-                        privateKey,
-                        publicKey);
-
-                connection = AdbConnection.create(socket, crypto);
-                connection.connect();
-
-                AdbStream stream = connection.open("exec:"+ "echo 'working'");
-                String out = new String(stream.read()).trim();
-                Log.d("ADB", out);
-                stream.close();
-                if (out.equals("working")) {
-                    new Handler(Looper.getMainLooper()).post(() -> {
-                        hasAdbWifi = true;
-                        loadingAdbWifi = false;
-                        //startService(new Intent(this, PrivilegedService.class));
-                        init();
-                    });
-                } else {
-                    new Handler(Looper.getMainLooper()).post(() -> {
-                        hasAdbWifi = false;
-                        loadingAdbWifi = false;
-                        init();
-                    });
-                }
-            } catch (Throwable th) {
-                th.printStackTrace();
-            } finally {
-                if (connection != null) {
-                    try {
-                        connection.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+                service.unregisterConnectionStateCallback(connectionStateCallback);
+            } catch (RemoteException e) {
+                e.printStackTrace();
             }
-        });
-        adbWifiThread.start();
+            service = null;
+        }
+        unbindService(serviceConnection);
+        super.onStop();
     }
 
     @Override
@@ -149,18 +158,63 @@ public class AuroraActivity extends AppCompatActivity {
         }
     }
 
+    @OnClick(R.id.service_diagnostics)
+    public void runDiagnostics() {
+        if (service == null || diagnosticsDialog != null) {
+            return;
+        }
+        diagnosticsDialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.diagnostics_title)
+                .setMessage(R.string.diagnostics_running)
+                .setPositiveButton(R.string.ok, null)
+                .setOnDismissListener(dialog -> diagnosticsDialog = null)
+                .show();
+        try {
+            service.runDiagnostics(diagnosticsCallback);
+        } catch (RemoteException | SecurityException e) {
+            showDiagnostics(null, null, e.getMessage());
+        }
+    }
+
+    private void showDiagnostics(String endpoint, String report, String error) {
+        if (isFinishing()) {
+            return;
+        }
+        String message = error != null ? getString(R.string.diagnostics_failed, error) : report;
+        if (endpoint != null) {
+            message = endpoint + "\n\n" + message;
+        }
+        if (diagnosticsDialog != null) {
+            diagnosticsDialog.setMessage(message);
+        } else {
+            diagnosticsDialog = new AlertDialog.Builder(this)
+                    .setTitle(R.string.diagnostics_title)
+                    .setMessage(message)
+                    .setPositiveButton(R.string.ok, null)
+                    .setOnDismissListener(dialog -> diagnosticsDialog = null)
+                    .show();
+        }
+    }
+
     @OnClick(R.id.card_health)
     public void requestPermission() {
     }
 
-    public void wifiInit(){
-        loadingAdbWifi = true;
-        hasAdbWifi = false;
-        if(adbWifiThread != null){
-            adbWifiThread.interrupt();
+    /**
+     * Asks the service to check its connection now, e.g. after the user accepted
+     * the authorization prompt on the device.
+     */
+    public void wifiInit() {
+        if (service == null) {
+            return;
         }
+        connectionState = ConnectionState.STATE_UNKNOWN;
         init();
-        tryInitAdbWifi();
+        try {
+            service.reprobeConnection();
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
     }
 
     private void init() {
@@ -169,8 +223,16 @@ public class AuroraActivity extends AppCompatActivity {
             textStatus.setTextColor(getResources().getColor(R.color.colorYellow));
         } else {
             if (isAdbWifiGranted()) {
-                textStatus.setText(getString(R.string.service_enabled));
+                textStatus.setText(connectionRtt >= 0
+                        ? getString(R.string.service_enabled_rtt, connectionRtt)
+                        : getString(R.string.service_enabled));
                 textStatus.setTextColor(getResources().getColor(R.color.colorGreen));
+            } else if (connectionState == ConnectionState.STATE_UNAUTHORIZED) {
+                textStatus.setText(getString(R.string.service_unauthorized));
+                textStatus.setTextColor(getResources().getColor(R.color.colorRed));
+            } else if (connectionState == ConnectionState.STATE_UNREACHABLE) {
+                textStatus.setText(getString(R.string.service_unreachable));
+                textStatus.setTextColor(getResources().getColor(R.color.colorRed));
             } else {
                 textStatus.setText(getString(R.string.service_disabled));
                 textStatus.setTextColor(getResources().getColor(R.color.colorRed));
@@ -182,10 +244,10 @@ public class AuroraActivity extends AppCompatActivity {
     }
 
     private boolean isAdbWifiGranted() {
-        return hasAdbWifi;
+        return connectionState == ConnectionState.STATE_AUTHORIZED;
     }
 
     private boolean isAdbWifiLoading() {
-        return loadingAdbWifi;
+        return connectionState == ConnectionState.STATE_UNKNOWN;
     }
 }
@@ -0,0 +1,26 @@
+package com.aurora.services.adb;
+
+import java.io.IOException;
+
+/**
+ * adbd answered but did not accept our key: the authorization prompt was
+ * dismissed or timed out, or the key is not paired for wireless debugging.
+ */
+public class AdbAuthorizationException extends IOException {
+
+    public AdbAuthorizationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Whether {@code throwable} or any of its causes is an authorization failure.
+     */
+    public static boolean isUnauthorized(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AdbAuthorizationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
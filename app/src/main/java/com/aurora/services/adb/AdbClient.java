@@ -0,0 +1,713 @@
+package com.aurora.services.adb;
+
+import com.aurora.services.utils.Log;
+import com.tananaev.adblib.AdbCrypto;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * One authenticated connection to an adbd, driven by the shared {@link AdbReactor}.
+ * Any number of {@link AdbStream}s can be open on it at the same time.
+ */
+public class AdbClient implements AdbReactor.Handler, Closeable {
+
+    public enum State {
+        CONNECTING,
+        AUTHENTICATING,
+        AWAITING_AUTHORIZATION,
+        ONLINE,
+        CLOSED
+    }
+
+    private static final int MAX_GATHER = 64;
+    private static final ByteBuffer[] HANDSHAKE_ONLY = {ByteBuffer.allocate(0)};
+
+    private final String host;
+    private final int port;
+    private final AdbCrypto crypto;
+    private final AdbTlsContext tlsContext;
+    private final AdbReactor reactor;
+    private final SocketChannel channel;
+    private ByteBuffer inbound;
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Map<Integer, AdbStream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextLocalId = new AtomicInteger(1);
+    private final CountDownLatch handshake = new CountDownLatch(1);
+
+    private SelectionKey key;
+    private boolean signatureSent;
+    private volatile boolean authorizationRequested;
+    private boolean tlsRequested;
+    private SSLEngine tls;
+    private ByteBuffer tlsInbound;
+    private ByteBuffer tlsOutbound;
+    private long tlsStarted;
+    private volatile boolean tlsEstablished;
+
+    private volatile State state = State.CONNECTING;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile IOException failure;
+    private volatile int peerVersion;
+    private volatile int maxData = AdbProtocol.MAX_PAYLOAD_LEGACY;
+    private volatile boolean delayedAck;
+    private volatile String banner = "";
+    private volatile Set<String> features = Collections.emptySet();
+    private volatile AdbFlowController flowController = new AdbFlowController();
+
+    public static AdbClient connect(String host, int port, AdbCrypto crypto) throws IOException, InterruptedException {
+        return connect(host, port, crypto, null);
+    }
+
+    /**
+     * Connects and authenticates, blocking until the device accepted the connection.
+     * On first use this includes the user confirming the key on the device. With a
+     * {@code tlsContext} the connection is upgraded when the device asks for STLS.
+     */
+    public static AdbClient connect(String host, int port, AdbCrypto crypto, AdbTlsContext tlsContext)
+            throws IOException, InterruptedException {
+        AdbClient client = new AdbClient(host, port, crypto, tlsContext);
+        try {
+            client.start();
+            client.awaitHandshake();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    private AdbClient(String host, int port, AdbCrypto crypto, AdbTlsContext tlsContext) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.crypto = crypto;
+        this.tlsContext = tlsContext;
+        this.reactor = AdbReactor.get();
+        this.channel = SocketChannel.open();
+        this.inbound = ByteBuffer.allocateDirect(AdbProtocol.HEADER_LENGTH + AdbProtocol.MAX_PAYLOAD)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void start() throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+        boolean connected = channel.connect(new InetSocketAddress(host, port));
+        reactor.register(channel, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this, key -> {
+            this.key = key;
+            if (connected) {
+                onConnected();
+            }
+        });
+    }
+
+    private void awaitHandshake() throws IOException, InterruptedException {
+        boolean done = handshake.await(AdbTimeouts.CONNECT, TimeUnit.MILLISECONDS);
+        if (!done && state == State.AWAITING_AUTHORIZATION) {
+            done = handshake.await(AdbTimeouts.AUTHORIZATION, TimeUnit.MILLISECONDS);
+        }
+        if (!done) {
+            fail(new AdbTimeoutException((state == State.AWAITING_AUTHORIZATION ? "Authorization" : "Connection")
+                    + " to " + host + ":" + port + " timed out"));
+        }
+        if (state != State.ONLINE) {
+            IOException cause = failure != null ? failure : new IOException("adb connection closed");
+            if (authorizationRequested && !(cause instanceof AdbAuthorizationException)) {
+                throw new AdbAuthorizationException("Device did not authorize this key on "
+                        + host + ":" + port + ": " + cause.getMessage(), cause);
+            }
+            throw cause;
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isAlive() {
+        return state == State.ONLINE;
+    }
+
+    public String getBanner() {
+        return banner;
+    }
+
+    public Set<String> getFeatures() {
+        return features;
+    }
+
+    public boolean hasFeature(String feature) {
+        return features.contains(feature);
+    }
+
+    /**
+     * Largest payload of a single message, negotiated during CNXN.
+     */
+    public int getMaxData() {
+        return maxData;
+    }
+
+    /**
+     * Time of the last bytes received from the device, including acks of our writes.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public boolean isDelayedAck() {
+        return delayedAck;
+    }
+
+    public AdbFlowController getFlowController() {
+        return flowController;
+    }
+
+    /**
+     * Shares the payload and window sizing with the other connections to this host.
+     */
+    public void setFlowController(AdbFlowController flowController) {
+        this.flowController = flowController;
+    }
+
+    /**
+     * Whether the connection was upgraded to TLS (wireless debugging).
+     */
+    public boolean isTls() {
+        return tlsEstablished;
+    }
+
+    /**
+     * Opens a stream to a service on the device, e.g. {@code exec:cmd package list}.
+     */
+    public AdbStream open(String destination) throws IOException, InterruptedException {
+        if (state != State.ONLINE) {
+            throw closedException();
+        }
+        int localId = nextLocalId.getAndIncrement();
+        AdbStream stream = new AdbStream(this, localId);
+        streams.put(localId, stream);
+        try {
+            send(AdbProtocol.CMD_OPEN, localId, delayedAck ? AdbProtocol.INITIAL_DELAYED_ACK_BYTES : 0,
+                    wrap(AdbProtocol.terminated(destination)));
+            stream.awaitOpen();
+        } catch (IOException | InterruptedException e) {
+            streams.remove(localId);
+            throw e;
+        }
+        return stream;
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("adb connection closed"));
+    }
+
+    /**
+     * Tears the connection down and fails every open stream with {@code reason}.
+     */
+    public void abort(IOException reason) {
+        fail(reason);
+    }
+
+    /**
+     * Queues a message for the reactor thread. Ownership of {@code payload}, which
+     * must come from the {@link BufferPool}, passes to the client.
+     */
+    void send(int command, int arg0, int arg1, ByteBuffer payload) throws IOException {
+        int length = payload == null ? 0 : payload.remaining();
+        int checksum = length > 0 && peerVersion < AdbProtocol.VERSION_SKIP_CHECKSUM
+                ? AdbProtocol.checksum(payload)
+                : 0;
+        ByteBuffer header = BufferPool.acquire(AdbProtocol.HEADER_LENGTH);
+        AdbProtocol.putHeader(header, command, arg0, arg1, length, checksum);
+        header.flip();
+        synchronized (outbound) {
+            if (state == State.CLOSED) {
+                BufferPool.release(header);
+                BufferPool.release(payload);
+                throw closedException();
+            }
+            outbound.add(header);
+            if (length > 0) {
+                outbound.add(payload);
+            } else {
+                BufferPool.release(payload);
+            }
+        }
+        requestFlush();
+    }
+
+    void closeStream(AdbStream stream) {
+        streams.remove(stream.getLocalId());
+        if (state == State.ONLINE && stream.getRemoteId() != 0) {
+            try {
+                send(AdbProtocol.CMD_CLSE, stream.getLocalId(), stream.getRemoteId(), null);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    IOException closedException() {
+        IOException cause = failure;
+        return cause != null ? new IOException(cause.getMessage(), cause) : new IOException("adb connection closed");
+    }
+
+    static ByteBuffer wrap(byte[] bytes) {
+        ByteBuffer buffer = BufferPool.acquire(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            reactor.execute(() -> {
+                flushRequested.set(false);
+                try {
+                    flush();
+                } catch (IOException e) {
+                    onFailure(e);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (!channel.finishConnect()) {
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            onConnected();
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void onFailure(IOException e) {
+        fail(e);
+    }
+
+    private void onConnected() {
+        state = State.AUTHENTICATING;
+        try {
+            send(AdbProtocol.CMD_CNXN, AdbProtocol.VERSION_SKIP_CHECKSUM, AdbProtocol.MAX_PAYLOAD,
+                    wrap(AdbProtocol.connectPayload()));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void flush() throws IOException {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        if (tls != null) {
+            flushTls();
+            return;
+        }
+        ByteBuffer[] batch = pendingOutbound();
+        if (batch.length > 0) {
+            channel.write(batch);
+        }
+        updateWriteInterest(releaseSent());
+    }
+
+    private ByteBuffer[] pendingOutbound() {
+        synchronized (outbound) {
+            int count = Math.min(outbound.size(), MAX_GATHER);
+            ByteBuffer[] batch = new ByteBuffer[count];
+            int i = 0;
+            for (ByteBuffer buffer : outbound) {
+                if (i == count) {
+                    break;
+                }
+                batch[i++] = buffer;
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Returns the buffers that were written completely to the pool and whether
+     * anything is left to send.
+     */
+    private boolean releaseSent() {
+        synchronized (outbound) {
+            while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+                BufferPool.release(outbound.pollFirst());
+            }
+            return !outbound.isEmpty();
+        }
+    }
+
+    private void updateWriteInterest(boolean pending) {
+        if (pending) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void read() throws IOException {
+        if (tls != null) {
+            readTls();
+            return;
+        }
+        int read = channel.read(inbound);
+        if (read < 0) {
+            throw new EOFException("adb connection closed by device");
+        }
+        lastActivity = System.currentTimeMillis();
+        processInbound();
+    }
+
+    /**
+     * Dispatches every complete message in {@link #inbound}. Bytes following an
+     * STLS request already belong to the TLS handshake and are handed over to it.
+     */
+    private void processInbound() throws IOException {
+        inbound.flip();
+        while (inbound.remaining() >= AdbProtocol.HEADER_LENGTH) {
+            int position = inbound.position();
+            int command = inbound.getInt(position);
+            int arg0 = inbound.getInt(position + 4);
+            int arg1 = inbound.getInt(position + 8);
+            int length = inbound.getInt(position + 12);
+            int magic = inbound.getInt(position + 20);
+            if (magic != ~command) {
+                throw new IOException("Invalid adb message header");
+            }
+            if (length < 0 || length > AdbProtocol.MAX_PAYLOAD) {
+                throw new IOException("adb payload too large: " + length);
+            }
+            if (inbound.remaining() < AdbProtocol.HEADER_LENGTH + length) {
+                break;
+            }
+            ByteBuffer payload = inbound.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            payload.position(position + AdbProtocol.HEADER_LENGTH);
+            payload.limit(position + AdbProtocol.HEADER_LENGTH + length);
+            inbound.position(position + AdbProtocol.HEADER_LENGTH + length);
+            dispatch(command, arg0, arg1, payload);
+            if (tlsRequested) {
+                tlsRequested = false;
+                startTls(inbound.slice());
+                return;
+            }
+        }
+        inbound.compact();
+    }
+
+    /**
+     * Answers STLS in plain text and switches the connection to TLS. adbd sends
+     * CNXN again once the handshake is done; AUTH is replaced by the client
+     * certificate.
+     */
+    private void startTls(ByteBuffer handshakeBytes) throws IOException {
+        if (tlsContext == null) {
+            throw new IOException("Device requires TLS (wireless debugging) which is not set up");
+        }
+        send(AdbProtocol.CMD_STLS, AdbProtocol.STLS_VERSION, 0, null);
+        flush();
+        if (releaseSent()) {
+            throw new IOException("Unable to answer STLS");
+        }
+        tlsStarted = System.currentTimeMillis();
+        tls = tlsContext.createEngine(host, port);
+        int packetSize = tls.getSession().getPacketBufferSize();
+        tlsInbound = ByteBuffer.allocateDirect(Math.max(packetSize, handshakeBytes.remaining()) * 2);
+        tlsInbound.put(handshakeBytes);
+        tlsOutbound = ByteBuffer.allocateDirect(packetSize * 4);
+        // room for a whole message plus one decrypted record, so unwrap never stalls
+        inbound = ByteBuffer.allocateDirect(AdbProtocol.HEADER_LENGTH + AdbProtocol.MAX_PAYLOAD
+                + tls.getSession().getApplicationBufferSize()).order(ByteOrder.LITTLE_ENDIAN);
+        tls.beginHandshake();
+        flushTls();
+        if (tlsInbound.position() > 0) {
+            unwrapTls();
+        }
+    }
+
+    private void readTls() throws IOException {
+        int read = channel.read(tlsInbound);
+        if (read < 0) {
+            throw new EOFException("adb connection closed by device");
+        }
+        lastActivity = System.currentTimeMillis();
+        unwrapTls();
+    }
+
+    private void unwrapTls() throws IOException {
+        tlsInbound.flip();
+        try {
+            while (true) {
+                SSLEngineResult result = tls.unwrap(tlsInbound, inbound);
+                onTlsResult(result);
+                if (result.bytesProduced() > 0 || result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    processInbound();
+                }
+                if (tls.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    flushTls();
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    growTlsInbound();
+                    break;
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && result.getStatus() == SSLEngineResult.Status.OK
+                        && tls.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    break;
+                }
+            }
+        } catch (SSLException e) {
+            throw tlsFailure(e);
+        } finally {
+            tlsInbound.compact();
+        }
+    }
+
+    private void flushTls() throws IOException {
+        int packetSize = tls.getSession().getPacketBufferSize();
+        try {
+            while (true) {
+                if (tlsOutbound.position() > 0) {
+                    tlsOutbound.flip();
+                    channel.write(tlsOutbound);
+                    tlsOutbound.compact();
+                    if (tlsOutbound.position() > 0) {
+                        updateWriteInterest(true);
+                        return;
+                    }
+                }
+                SSLEngineResult.HandshakeStatus status = tls.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTlsTasks();
+                    continue;
+                }
+                boolean handshaking = status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                        && status != SSLEngineResult.HandshakeStatus.FINISHED;
+                if (handshaking && status != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    // waiting for the device, application data is sent once the handshake is done
+                    updateWriteInterest(false);
+                    return;
+                }
+                ByteBuffer[] batch = handshaking ? HANDSHAKE_ONLY : pendingOutbound();
+                if (batch.length == 0) {
+                    updateWriteInterest(false);
+                    return;
+                }
+                if (tlsOutbound.capacity() < packetSize) {
+                    tlsOutbound = ByteBuffer.allocateDirect(packetSize * 4);
+                }
+                while (tlsOutbound.remaining() >= packetSize) {
+                    SSLEngineResult result = tls.wrap(batch, tlsOutbound);
+                    onTlsResult(result);
+                    if (handshaking || result.bytesConsumed() == 0 || !hasRemaining(batch)) {
+                        break;
+                    }
+                }
+                releaseSent();
+            }
+        } catch (SSLException e) {
+            throw tlsFailure(e);
+        }
+    }
+
+    private void onTlsResult(SSLEngineResult result) throws IOException {
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new EOFException("adb TLS session closed by device");
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTlsTasks();
+        }
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED && !tlsEstablished) {
+            tlsEstablished = true;
+            Log.i("TLS established with %s:%d using %s in %d ms", host, port, tls.getSession().getProtocol(),
+                    System.currentTimeMillis() - tlsStarted);
+        }
+    }
+
+    private void runTlsTasks() {
+        Runnable task;
+        while ((task = tls.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * A record can be larger than the buffer when the session grows its packet
+     * size after the handshake.
+     */
+    private void growTlsInbound() {
+        int packetSize = tls.getSession().getPacketBufferSize();
+        if (tlsInbound.limit() == tlsInbound.capacity() && tlsInbound.capacity() < packetSize * 2) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(packetSize * 2);
+            larger.put(tlsInbound);
+            larger.flip();
+            tlsInbound = larger;
+        }
+    }
+
+    private IOException tlsFailure(SSLException e) {
+        if (!tlsEstablished) {
+            return new AdbAuthorizationException("TLS handshake with " + host + ":" + port
+                    + " failed, is this key paired for wireless debugging? " + e.getMessage(), e);
+        }
+        return e;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dispatch(int command, int arg0, int arg1, ByteBuffer payload) throws IOException {
+        switch (command) {
+            case AdbProtocol.CMD_CNXN:
+                onDeviceConnected(arg0, arg1, payload);
+                break;
+            case AdbProtocol.CMD_AUTH:
+                onAuth(arg0, payload);
+                break;
+            case AdbProtocol.CMD_STLS:
+                tlsRequested = true;
+                break;
+            case AdbProtocol.CMD_OKAY: {
+                AdbStream stream = streams.get(arg1);
+                if (stream != null) {
+                    int acked = payload.remaining() >= 4 ? payload.getInt(payload.position()) : -1;
+                    stream.onOkay(arg0, acked);
+                }
+                break;
+            }
+            case AdbProtocol.CMD_WRTE: {
+                AdbStream stream = streams.get(arg1);
+                int length = payload.remaining();
+                if (stream == null) {
+                    send(AdbProtocol.CMD_CLSE, 0, arg0, null);
+                    break;
+                }
+                byte[] data = new byte[length];
+                payload.get(data);
+                stream.onData(data);
+                ByteBuffer ack = null;
+                if (delayedAck) {
+                    ack = BufferPool.acquire(4).order(ByteOrder.LITTLE_ENDIAN);
+                    ack.putInt(length);
+                    ack.flip();
+                }
+                send(AdbProtocol.CMD_OKAY, arg1, arg0, ack);
+                break;
+            }
+            case AdbProtocol.CMD_CLSE: {
+                AdbStream stream = streams.remove(arg1);
+                if (stream != null) {
+                    stream.onRemoteClose();
+                }
+                break;
+            }
+            default:
+                Log.w("Ignoring unexpected adb message %s", AdbProtocol.commandName(command));
+                break;
+        }
+    }
+
+    private void onDeviceConnected(int version, int deviceMaxData, ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        banner = new String(bytes, StandardCharsets.UTF_8).trim();
+        peerVersion = version;
+        maxData = Math.min(deviceMaxData, AdbProtocol.MAX_PAYLOAD);
+        features = Collections.unmodifiableSet(AdbProtocol.parseFeatures(banner));
+        delayedAck = features.contains(AdbProtocol.FEATURE_DELAYED_ACK);
+        state = State.ONLINE;
+        Log.i("adb online on %s:%d, maxdata %d, features %s", host, port, maxData, new ArrayList<>(features));
+        handshake.countDown();
+    }
+
+    private void onAuth(int type, ByteBuffer payload) throws IOException {
+        if (type != AdbProtocol.AUTH_TOKEN) {
+            return;
+        }
+        byte[] token = new byte[payload.remaining()];
+        payload.get(token);
+        if (!signatureSent) {
+            signatureSent = true;
+            try {
+                send(AdbProtocol.CMD_AUTH, AdbProtocol.AUTH_SIGNATURE, 0, wrap(crypto.signAdbTokenPayload(token)));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to sign adb token", e);
+            }
+        } else {
+            state = State.AWAITING_AUTHORIZATION;
+            authorizationRequested = true;
+            Log.i("Waiting for the device to authorize this key");
+            send(AdbProtocol.CMD_AUTH, AdbProtocol.AUTH_RSAPUBLICKEY, 0, wrap(crypto.getAdbPublicKeyPayload()));
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (outbound) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            state = State.CLOSED;
+            failure = e;
+            for (ByteBuffer buffer : outbound) {
+                BufferPool.release(buffer);
+            }
+            outbound.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        for (AdbStream stream : streams.values()) {
+            stream.onFailure(e);
+        }
+        streams.clear();
+        handshake.countDown();
+    }
+}
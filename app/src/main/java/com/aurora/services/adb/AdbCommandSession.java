@@ -0,0 +1,164 @@
+package com.aurora.services.adb;
+
+import com.aurora.services.utils.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived {@code sh} on the device that runs short control commands
+ * (install-create, install-commit, clear, uninstall...) without opening a
+ * stream or starting a shell per command. Commands are pipelined: every command
+ * is followed by a unique marker carrying its exit code, and a reader thread
+ * hands each chunk of output to the caller that is waiting for it.
+ */
+public class AdbCommandSession implements Closeable {
+
+    public static class Result {
+
+        private final int exitCode;
+        private final String output;
+
+        Result(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+    }
+
+    private static final AtomicLong MARKER_COUNTER = new AtomicLong();
+
+    private final AdbStream stream;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private final StringBuilder output = new StringBuilder();
+
+    private volatile IOException failure;
+
+    public AdbCommandSession(AdbClient client) throws IOException, InterruptedException {
+        stream = client.open("exec:sh");
+        Thread reader = new Thread(this::readLoop, "adb-shell-" + client.getHost() + ":" + client.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public boolean isAlive() {
+        return failure == null && !stream.isClosed();
+    }
+
+    /**
+     * Runs {@code commandLine} and blocks until its output and exit code arrived.
+     * stdin of the command is /dev/null so it can never swallow the next command.
+     */
+    public Result execute(String commandLine) throws IOException, InterruptedException {
+        Pending command = new Pending("__AURORA_" + MARKER_COUNTER.incrementAndGet() + "__");
+        synchronized (pending) {
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            pending.addLast(command);
+            stream.write("{ " + commandLine + "\n} </dev/null 2>&1; printf '\\n%s %d\\n' "
+                    + command.marker + " $?\n");
+        }
+        command.done.await();
+        if (command.failure != null) {
+            throw new IOException(command.failure.getMessage(), command.failure);
+        }
+        return command.result;
+    }
+
+    @Override
+    public void close() {
+        stream.close();
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                // ISO-8859-1 maps bytes 1:1 to chars, the result is decoded as UTF-8 once complete
+                output.append(new String(stream.read(), StandardCharsets.ISO_8859_1));
+                deliverCompleted();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new IOException("Shell session interrupted", e));
+        }
+    }
+
+    private void deliverCompleted() {
+        while (true) {
+            Pending command;
+            synchronized (pending) {
+                command = pending.peekFirst();
+            }
+            if (command == null) {
+                if (output.length() > 0) {
+                    Log.w("Unexpected shell output: %s", output);
+                    output.setLength(0);
+                }
+                return;
+            }
+            String marker = "\n" + command.marker + " ";
+            int start = output.indexOf(marker);
+            if (start < 0) {
+                return;
+            }
+            int end = output.indexOf("\n", start + marker.length());
+            if (end < 0) {
+                return;
+            }
+            int exitCode;
+            try {
+                exitCode = Integer.parseInt(output.substring(start + marker.length(), end).trim());
+            } catch (NumberFormatException e) {
+                exitCode = -1;
+            }
+            byte[] bytes = output.substring(0, start).getBytes(StandardCharsets.ISO_8859_1);
+            output.delete(0, end + 1);
+            synchronized (pending) {
+                pending.pollFirst();
+            }
+            command.result = new Result(exitCode, new String(bytes, StandardCharsets.UTF_8));
+            command.done.countDown();
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (pending) {
+            failure = e;
+            for (Pending command : pending) {
+                command.failure = e;
+                command.done.countDown();
+            }
+            pending.clear();
+        }
+        stream.close();
+    }
+
+    private static class Pending {
+        private final String marker;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Result result;
+        private volatile IOException failure;
+
+        private Pending(String marker) {
+            this.marker = marker;
+        }
+    }
+}
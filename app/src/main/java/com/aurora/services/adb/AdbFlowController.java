@@ -0,0 +1,170 @@
+package com.aurora.services.adb;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AIMD sizing of WRTE payloads and of the bytes kept in flight on a host. Both
+ * grow by one step per window of acknowledged data while the acknowledgement
+ * latency stays within {@link #TARGET_QUEUE_DELAY} of the lowest latency seen,
+ * and are halved when it does not (quartered on a timeout). adbd only
+ * acknowledges a delayed-ack WRTE once it handed the data to the receiving
+ * process, so the latency covers the link as well as a slow {@code pm}.
+ * <p>
+ * One controller is shared by every connection to a host; the last setting
+ * that stayed within budget is what gets remembered for the next install.
+ */
+public class AdbFlowController {
+
+    public static final int MIN_CHUNK = 4 * 1024;
+    public static final int MAX_CHUNK = AdbProtocol.MAX_PAYLOAD;
+    public static final long MAX_WINDOW = 8 * 1024 * 1024;
+
+    static final int DEFAULT_CHUNK = 64 * 1024;
+    static final long DEFAULT_WINDOW = 256 * 1024;
+
+    private static final int CHUNK_STEP = 16 * 1024;
+    private static final long TARGET_QUEUE_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BASE_DELAY_LIFETIME = TimeUnit.SECONDS.toNanos(60);
+    private static final long TIMEOUT_HOLDOFF = TimeUnit.SECONDS.toNanos(1);
+
+    private final boolean adaptive;
+
+    private int chunkSize;
+    private long window;
+    private int lastGoodChunkSize;
+    private long lastGoodWindow;
+    private boolean lastGoodChanged;
+
+    private long baseDelay = Long.MAX_VALUE;
+    private long baseDelaySince;
+    private long ackedSinceIncrease;
+    private long lastDecrease;
+
+    public AdbFlowController() {
+        this(DEFAULT_CHUNK, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Starts from a remembered setting, e.g. the last good one of this host.
+     */
+    public AdbFlowController(int chunkSize, long window) {
+        this(chunkSize, window, true);
+    }
+
+    private AdbFlowController(int chunkSize, long window, boolean adaptive) {
+        this.adaptive = adaptive;
+        reset(chunkSize, window);
+    }
+
+    /**
+     * A controller that keeps its setting, for measuring one chunk size.
+     */
+    public static AdbFlowController fixed(int chunkSize, long window) {
+        return new AdbFlowController(chunkSize, window, false);
+    }
+
+    /**
+     * Restarts from {@code chunkSize} and {@code window}, e.g. after calibration.
+     */
+    public synchronized void reset(int chunkSize, long window) {
+        this.chunkSize = clampChunk(chunkSize);
+        this.window = clampWindow(window, this.chunkSize);
+        lastGoodChunkSize = this.chunkSize;
+        lastGoodWindow = this.window;
+        lastGoodChanged = false;
+        baseDelay = Long.MAX_VALUE;
+        ackedSinceIncrease = 0;
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    public synchronized long getWindow() {
+        return window;
+    }
+
+    public synchronized int getLastGoodChunkSize() {
+        return lastGoodChunkSize;
+    }
+
+    public synchronized long getLastGoodWindow() {
+        return lastGoodWindow;
+    }
+
+    /**
+     * True if the last good setting moved since the previous call, or since the
+     * controller was started or reset.
+     */
+    public synchronized boolean takeLastGoodChanged() {
+        boolean changed = lastGoodChanged;
+        lastGoodChanged = false;
+        return changed;
+    }
+
+    /**
+     * Feeds the acknowledgement of {@code bytes} that took {@code latency} ns
+     * from send to OKAY.
+     */
+    public synchronized void onAck(long bytes, long latency) {
+        if (!adaptive) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (latency < baseDelay || now - baseDelaySince > BASE_DELAY_LIFETIME) {
+            // forget old minimums so a route change does not look like congestion forever
+            baseDelay = latency;
+            baseDelaySince = now;
+        }
+        if (latency - baseDelay > TARGET_QUEUE_DELAY) {
+            if (now - lastDecrease > latency) {
+                chunkSize = clampChunk(chunkSize / 2);
+                window = clampWindow(window / 2, chunkSize);
+                ackedSinceIncrease = 0;
+                lastDecrease = now;
+            }
+            return;
+        }
+        setLastGood();
+        ackedSinceIncrease += bytes;
+        if (ackedSinceIncrease >= window) {
+            ackedSinceIncrease = 0;
+            chunkSize = clampChunk(chunkSize + CHUNK_STEP);
+            window = clampWindow(window + chunkSize, chunkSize);
+        }
+    }
+
+    /**
+     * A transfer on this host was torn down by the watchdog.
+     */
+    public synchronized void onTimeout() {
+        if (!adaptive) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastDecrease < TIMEOUT_HOLDOFF) {
+            return;
+        }
+        chunkSize = clampChunk(chunkSize / 4);
+        window = clampWindow(window / 4, chunkSize);
+        setLastGood();
+        ackedSinceIncrease = 0;
+        lastDecrease = now;
+    }
+
+    private void setLastGood() {
+        if (lastGoodChunkSize != chunkSize || lastGoodWindow != window) {
+            lastGoodChunkSize = chunkSize;
+            lastGoodWindow = window;
+            lastGoodChanged = true;
+        }
+    }
+
+    private static int clampChunk(int chunkSize) {
+        return Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, chunkSize));
+    }
+
+    private static long clampWindow(long window, int chunkSize) {
+        return Math.max(chunkSize, Math.min(MAX_WINDOW, window));
+    }
+}
@@ -0,0 +1,342 @@
+package com.aurora.services.adb;
+
+import com.aurora.services.helper.InstallHelper;
+import com.aurora.services.utils.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Service side of {@link InstallHelper}. The helper is loaded from our own APK,
+ * which is copied to /data/local/tmp once per content hash and then started with
+ * app_process on a single exec: stream that stays open for every install.
+ */
+public class AdbInstallHelper implements Closeable {
+
+    public static class CommitResult {
+
+        private final int status;
+        private final String message;
+
+        CommitResult(int status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+
+        /**
+         * One of the {@code PackageInstaller.STATUS_*} constants.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isSuccess() {
+            return status == 0;
+        }
+    }
+
+    private static final String REMOTE_DIR = "/data/local/tmp";
+    private static final String REMOTE_PREFIX = "aurora-helper-";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, String> hashCache = new HashMap<>();
+
+    private final AdbStream stream;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private boolean broken;
+
+    /**
+     * Makes sure the current helper is on the device and starts it. Throws when the
+     * helper can not be pushed or does not answer with the expected version.
+     */
+    public static AdbInstallHelper start(AdbClient client, AdbCommandSession session, File apk)
+            throws IOException, InterruptedException {
+        String remotePath = REMOTE_DIR + "/" + REMOTE_PREFIX + hashOf(apk).substring(0, 16) + ".apk";
+        try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(client, "install helper start",
+                AdbTimeouts.write(apk.length()), AdbTimeouts.WRITE_STALL)) {
+            // a file of the wrong size is a push that was cut off, push it again
+            if (!session.execute(hasSize(remotePath, apk.length())).isSuccess()) {
+                push(client, session, apk, remotePath);
+            }
+            return launch(client, remotePath);
+        }
+    }
+
+    private static AdbInstallHelper launch(AdbClient client, String remotePath)
+            throws IOException, InterruptedException {
+        AdbStream stream = client.open("exec:CLASSPATH=" + remotePath
+                + " app_process /system/bin " + InstallHelper.class.getName() + " 2>/dev/null");
+        try {
+            return new AdbInstallHelper(stream);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    private AdbInstallHelper(AdbStream stream) throws IOException {
+        this.stream = stream;
+        in = new DataInputStream(stream.getInputStream());
+        out = new DataOutputStream(new BufferedOutputStream(stream.getOutputStream(), BUFFER_SIZE));
+        int magic;
+        int version;
+        try {
+            magic = in.readInt();
+            version = in.readInt();
+        } catch (EOFException e) {
+            throw new IOException("Install helper exited during start");
+        }
+        if (magic != InstallHelper.MAGIC || version != InstallHelper.VERSION) {
+            throw new IOException("Unexpected install helper handshake");
+        }
+    }
+
+    public synchronized boolean isAlive() {
+        return !broken && !stream.isClosed();
+    }
+
+    /**
+     * Creates a session and returns its id. With {@code inheritPackage} set the
+     * session only carries the splits written to it and keeps the other splits
+     * of the installed version of that package.
+     */
+    public synchronized int createSession(long totalSize, String installerPackageName, boolean replace, int userId,
+                                          String inheritPackage) throws IOException {
+        begin(InstallHelper.OP_CREATE);
+        out.writeLong(totalSize);
+        out.writeUTF(installerPackageName);
+        out.writeBoolean(replace);
+        out.writeInt(userId);
+        out.writeUTF(inheritPackage != null ? inheritPackage : "");
+        return (int) awaitReply();
+    }
+
+    /**
+     * Streams {@code length} bytes of {@code source} into split {@code name} of
+     * the session, starting at {@code offset} of the split.
+     */
+    public synchronized void write(int sessionId, String name, long offset, long length, SourceReader source)
+            throws IOException, InterruptedException {
+        begin(InstallHelper.OP_WRITE);
+        out.writeInt(sessionId);
+        out.writeUTF(name);
+        out.writeLong(offset);
+        out.writeLong(length);
+        out.flush();
+        try {
+            source.transferTo(stream);
+        } catch (IOException | InterruptedException e) {
+            // the helper still expects the rest of the bytes, the stream is unusable
+            close();
+            throw e;
+        }
+        awaitReply();
+    }
+
+    /**
+     * Streams all of {@code source}, whose size is not known, into split
+     * {@code name} of the session. Every chunk the source hands out goes as one
+     * length-prefixed frame. Returns the bytes written.
+     */
+    public synchronized long writeChunked(int sessionId, String name, SourceReader source)
+            throws IOException, InterruptedException {
+        begin(InstallHelper.OP_WRITE_CHUNKED);
+        out.writeInt(sessionId);
+        out.writeUTF(name);
+        out.flush();
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try {
+            ByteBuffer buffer;
+            while ((buffer = source.next()) != null) {
+                try {
+                    header.clear();
+                    header.putInt(buffer.remaining()).flip();
+                    stream.write(header);
+                    stream.write(buffer);
+                } finally {
+                    source.recycle(buffer);
+                }
+            }
+            header.clear();
+            header.putInt(0).flip();
+            stream.write(header);
+        } catch (IOException | InterruptedException e) {
+            // the helper still expects chunks, the stream is unusable
+            close();
+            throw e;
+        }
+        return awaitReply();
+    }
+
+    /**
+     * Lets the helper read split {@code name} straight from {@code path} on the
+     * device. Returns false if the shell user can not read the file.
+     */
+    public synchronized boolean writeFile(int sessionId, String name, String path) throws IOException {
+        begin(InstallHelper.OP_WRITE_FILE);
+        out.writeInt(sessionId);
+        out.writeUTF(name);
+        out.writeUTF(path);
+        try {
+            awaitReply();
+            return true;
+        } catch (HelperException e) {
+            Log.w("Helper could not read %s: %s", path, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Bytes of split {@code name} a cut off {@link #write} starting at
+     * {@code offset} got into the session, possibly through another helper that
+     * has since died. Writing on from there resumes the split.
+     */
+    public synchronized long getProgress(int sessionId, String name, long offset) throws IOException {
+        begin(InstallHelper.OP_PROGRESS);
+        out.writeInt(sessionId);
+        out.writeUTF(name);
+        out.writeLong(offset);
+        return awaitReply();
+    }
+
+    public synchronized CommitResult commit(int sessionId) throws IOException {
+        begin(InstallHelper.OP_COMMIT);
+        out.writeInt(sessionId);
+        String[] message = new String[1];
+        int status = (int) awaitReply(message);
+        return new CommitResult(status, message[0]);
+    }
+
+    public synchronized void abandon(int sessionId) throws IOException {
+        begin(InstallHelper.OP_ABANDON);
+        out.writeInt(sessionId);
+        awaitReply();
+    }
+
+    @Override
+    public synchronized void close() {
+        broken = true;
+        stream.close();
+    }
+
+    private void begin(int op) throws IOException {
+        if (!isAlive()) {
+            throw new IOException("Install helper is not running");
+        }
+        out.write(op);
+    }
+
+    private long awaitReply() throws IOException {
+        return awaitReply(null);
+    }
+
+    private long awaitReply(String[] message) throws IOException {
+        try {
+            out.flush();
+            int status = in.readInt();
+            String text = in.readUTF();
+            long value = in.readLong();
+            if (status != InstallHelper.STATUS_OK) {
+                throw new HelperException(text);
+            }
+            if (message != null) {
+                message[0] = text;
+            }
+            return value;
+        } catch (HelperException e) {
+            throw e;
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
+    }
+
+    private static void push(AdbClient client, AdbCommandSession session, File apk, String remotePath)
+            throws IOException, InterruptedException {
+        Log.i("Pushing install helper to %s", remotePath);
+        session.execute("rm -f " + REMOTE_DIR + "/" + REMOTE_PREFIX + "*.apk");
+        String temporaryPath = remotePath + ".tmp";
+        // head exits fine on a short stdin, only a complete copy may take the final name
+        AdbStream stream = client.open("exec:head -c " + apk.length() + " > " + temporaryPath
+                + " && " + hasSize(temporaryPath, apk.length())
+                + " && mv " + temporaryPath + " " + remotePath
+                + " || rm -f " + temporaryPath);
+        try (FileInputStream source = new FileInputStream(apk)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = source.read(buffer)) > 0) {
+                stream.write(buffer, 0, read);
+            }
+            stream.readAll();
+        } finally {
+            stream.close();
+        }
+        if (!session.execute(hasSize(remotePath, apk.length())).isSuccess()) {
+            throw new IOException("Unable to push install helper");
+        }
+    }
+
+    /**
+     * A shell test that succeeds if {@code path} is a file of {@code length} bytes.
+     */
+    private static String hasSize(String path, long length) {
+        return "[ \"$(stat -c %s " + path + " 2>/dev/null)\" = " + length + " ]";
+    }
+
+    private static String hashOf(File apk) throws IOException {
+        String key = apk.getAbsolutePath() + "@" + apk.lastModified();
+        synchronized (hashCache) {
+            String hash = hashCache.get(key);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileInputStream source = new FileInputStream(apk)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = source.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        synchronized (hashCache) {
+            hashCache.put(key, hash.toString());
+        }
+        return hash.toString();
+    }
+
+    /**
+     * The helper rejected a request but is still in sync and usable.
+     */
+    public static class HelperException extends PackageManagerException {
+        HelperException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.aurora.services.adb;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds adbd on a host whose port is not known, e.g. wireless debugging which
+ * picks a new port on every start. Ports are tried with non-blocking connects, a
+ * bounded number at a time, and a port only counts once it answers our CNXN with
+ * a well-formed CNXN, AUTH or STLS header.
+ */
+public class AdbPortScanner {
+
+    private static final long CANDIDATE_TIMEOUT = 750;
+    private static final long SELECT_INTERVAL = 50;
+
+    private final String host;
+    private final int maxInFlight;
+    private final byte[] request;
+
+    public AdbPortScanner(String host, int maxInFlight) {
+        this.host = host;
+        this.maxInFlight = maxInFlight;
+        byte[] payload = AdbProtocol.connectPayload();
+        ByteBuffer buffer = ByteBuffer.allocate(AdbProtocol.HEADER_LENGTH + payload.length);
+        AdbProtocol.putHeader(buffer, AdbProtocol.CMD_CNXN, AdbProtocol.VERSION_SKIP_CHECKSUM,
+                AdbProtocol.MAX_PAYLOAD, payload.length, AdbProtocol.checksum(ByteBuffer.wrap(payload)));
+        buffer.put(payload);
+        request = buffer.array();
+    }
+
+    /**
+     * Scans {@code fromPort..toPort} and returns up to {@code limit} ports that
+     * speak adb, in the order they answered. Gives up after {@code timeout} ms.
+     */
+    public List<Integer> scan(int fromPort, int toPort, int limit, long timeout) throws IOException {
+        InetAddress address = InetAddress.getByName(host);
+        List<Integer> found = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + timeout;
+        int next = fromPort;
+        try (Selector selector = Selector.open()) {
+            while ((next <= toPort || !selector.keys().isEmpty())
+                    && found.size() < limit
+                    && System.currentTimeMillis() < deadline) {
+                while (selector.keys().size() < maxInFlight && next <= toPort) {
+                    startProbe(selector, address, next++);
+                }
+                selector.select(SELECT_INTERVAL);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Probe probe = (Probe) key.attachment();
+                    try {
+                        if (probe.advance(key)) {
+                            found.add(probe.port);
+                            key.cancel();
+                            key.channel().close();
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+                selector.selectedKeys().clear();
+                expire(selector);
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        }
+        return found;
+    }
+
+    private void startProbe(Selector selector, InetAddress address, int port) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(new InetSocketAddress(address, port));
+            if (connected && channel.socket().getLocalPort() == port) {
+                throw new IOException("Connected to self");
+            }
+            Probe probe = new Probe(port, ByteBuffer.wrap(request));
+            channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, probe);
+        } catch (IOException e) {
+            // refused right away or looped back onto itself
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void expire(Selector selector) throws IOException {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && now - ((Probe) key.attachment()).started >= CANDIDATE_TIMEOUT) {
+                key.cancel();
+                key.channel().close();
+            }
+        }
+    }
+
+    private static class Probe {
+
+        private final int port;
+        private final ByteBuffer request;
+        private final ByteBuffer response = ByteBuffer.allocate(AdbProtocol.HEADER_LENGTH)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private final long started = System.currentTimeMillis();
+
+        private Probe(int port, ByteBuffer request) {
+            this.port = port;
+            this.request = request;
+        }
+
+        /**
+         * Moves the probe forward, returns true once the port proved to be adbd.
+         */
+        private boolean advance(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                if (channel.socket().getLocalPort() == port) {
+                    // TCP simultaneous open onto our own ephemeral port, it would echo our CNXN
+                    throw new IOException("Connected to self");
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            if (key.isWritable()) {
+                channel.write(request);
+                if (!request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return false;
+            }
+            if (key.isReadable()) {
+                if (channel.read(response) < 0) {
+                    throw new IOException("Closed");
+                }
+                if (!response.hasRemaining()) {
+                    int command = response.getInt(0);
+                    int magic = response.getInt(20);
+                    if (magic != ~command) {
+                        throw new IOException("Not adb");
+                    }
+                    if (command != AdbProtocol.CMD_CNXN
+                            && command != AdbProtocol.CMD_AUTH
+                            && command != AdbProtocol.CMD_STLS) {
+                        throw new IOException("Not adb");
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
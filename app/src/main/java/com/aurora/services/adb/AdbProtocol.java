@@ -0,0 +1,147 @@
+package com.aurora.services.adb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Constants and framing helpers for the adb wire protocol, see
+ * system/core/adb/protocol.txt in AOSP.
+ */
+public final class AdbProtocol {
+
+    public static final int HEADER_LENGTH = 24;
+
+    public static final int CMD_SYNC = 0x434e5953;
+    public static final int CMD_CNXN = 0x4e584e43;
+    public static final int CMD_AUTH = 0x48545541;
+    public static final int CMD_OPEN = 0x4e45504f;
+    public static final int CMD_OKAY = 0x59414b4f;
+    public static final int CMD_CLSE = 0x45534c43;
+    public static final int CMD_WRTE = 0x45545257;
+    public static final int CMD_STLS = 0x534c5453;
+
+    public static final int VERSION_MIN = 0x01000000;
+    public static final int VERSION_SKIP_CHECKSUM = 0x01000001;
+    public static final int STLS_VERSION = 0x01000000;
+
+    public static final int AUTH_TOKEN = 1;
+    public static final int AUTH_SIGNATURE = 2;
+    public static final int AUTH_RSAPUBLICKEY = 3;
+
+    /**
+     * Payload size advertised in CNXN, the device answers with its own limit and
+     * the smaller of both is used. Pre-N devices still cap this at 4 KiB.
+     */
+    public static final int MAX_PAYLOAD = 1024 * 1024;
+    public static final int MAX_PAYLOAD_LEGACY = 4096;
+
+    /**
+     * Bytes the device may send on a stream before waiting for our OKAY when
+     * delayed acks are negotiated.
+     */
+    public static final int INITIAL_DELAYED_ACK_BYTES = 4 * 1024 * 1024;
+
+    public static final String FEATURE_CMD = "cmd";
+    public static final String FEATURE_STAT_V2 = "stat_v2";
+    public static final String FEATURE_LS_V2 = "ls_v2";
+    public static final String FEATURE_APEX = "apex";
+    public static final String FEATURE_ABB = "abb";
+    public static final String FEATURE_ABB_EXEC = "abb_exec";
+    public static final String FEATURE_FIXED_PUSH_MKDIR = "fixed_push_mkdir";
+    public static final String FEATURE_SENDRECV_V2 = "sendrecv_v2";
+    public static final String FEATURE_DELAYED_ACK = "delayed_ack";
+
+    /**
+     * Features this client understands. shell_v2 is left out on purpose, it would
+     * switch shell: streams to the framed shell protocol.
+     */
+    public static final List<String> HOST_FEATURES = Collections.unmodifiableList(Arrays.asList(
+            FEATURE_CMD,
+            FEATURE_STAT_V2,
+            FEATURE_LS_V2,
+            FEATURE_APEX,
+            FEATURE_ABB,
+            FEATURE_ABB_EXEC,
+            FEATURE_FIXED_PUSH_MKDIR,
+            FEATURE_SENDRECV_V2,
+            FEATURE_DELAYED_ACK
+    ));
+
+    private AdbProtocol() {
+    }
+
+    public static int checksum(ByteBuffer payload) {
+        int sum = 0;
+        for (int i = payload.position(); i < payload.limit(); i++) {
+            sum += payload.get(i) & 0xff;
+        }
+        return sum;
+    }
+
+    /**
+     * Writes a message header for {@code length} payload bytes at the buffer's
+     * position.
+     */
+    public static void putHeader(ByteBuffer buffer, int command, int arg0, int arg1, int length, int checksum) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(command);
+        buffer.putInt(arg0);
+        buffer.putInt(arg1);
+        buffer.putInt(length);
+        buffer.putInt(checksum);
+        buffer.putInt(~command);
+        buffer.order(order);
+    }
+
+    public static byte[] connectPayload() {
+        StringBuilder builder = new StringBuilder("host::features=");
+        for (int i = 0; i < HOST_FEATURES.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(HOST_FEATURES.get(i));
+        }
+        return terminated(builder.toString());
+    }
+
+    /**
+     * Extracts the feature list from a device banner such as
+     * {@code device::ro.product.name=x;ro.product.model=y;features=cmd,abb_exec}.
+     */
+    public static Set<String> parseFeatures(String banner) {
+        Set<String> features = new HashSet<>();
+        int separator = banner.indexOf("::");
+        String properties = separator >= 0 ? banner.substring(separator + 2) : banner;
+        for (String property : properties.split(";")) {
+            if (property.startsWith("features=")) {
+                for (String feature : property.substring("features=".length()).split(",")) {
+                    String trimmed = feature.trim();
+                    if (!trimmed.isEmpty()) {
+                        features.add(trimmed);
+                    }
+                }
+            }
+        }
+        return features;
+    }
+
+    public static byte[] terminated(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return Arrays.copyOf(bytes, bytes.length + 1);
+    }
+
+    public static String commandName(int command) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) ((command >> (8 * i)) & 0xff);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,114 @@
+package com.aurora.services.adb;
+
+import com.aurora.services.utils.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single I/O thread that multiplexes every adb socket of the process with one
+ * selector. Handlers are only ever called on this thread; other threads hand
+ * work over with {@link #execute}.
+ */
+public final class AdbReactor implements Runnable {
+
+    public interface Handler {
+
+        void onReady(SelectionKey key) throws IOException;
+
+        void onFailure(IOException e);
+    }
+
+    public interface KeyCallback {
+
+        void onRegistered(SelectionKey key);
+    }
+
+    private static AdbReactor instance;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    public static synchronized AdbReactor get() throws IOException {
+        if (instance == null || !instance.thread.isAlive()) {
+            instance = new AdbReactor();
+        }
+        return instance;
+    }
+
+    private AdbReactor() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "adb-reactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean isReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers a non-blocking channel, {@code callback} receives the key on the
+     * reactor thread or the failure if registration was impossible.
+     */
+    public void register(SelectableChannel channel, int ops, Handler handler, KeyCallback callback) {
+        execute(() -> {
+            try {
+                callback.onRegistered(channel.register(selector, ops, handler));
+            } catch (ClosedChannelException e) {
+                handler.onFailure(e);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e("adb reactor task failed: %s", e);
+                }
+            }
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.e("adb selector failed: %s", e.getMessage());
+                continue;
+            }
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.onReady(key);
+                    }
+                } catch (IOException e) {
+                    key.cancel();
+                    handler.onFailure(e);
+                } catch (RuntimeException e) {
+                    key.cancel();
+                    handler.onFailure(new IOException(e));
+                }
+            }
+        }
+    }
+}
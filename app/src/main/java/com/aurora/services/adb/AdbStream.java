@@ -0,0 +1,338 @@
+package com.aurora.services.adb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A single adb stream (OPEN/WRTE/OKAY/CLSE) on an {@link AdbClient}. Reads and
+ * writes block the calling thread, never the reactor.
+ */
+public class AdbStream implements Closeable {
+
+    private final AdbClient client;
+    private final int localId;
+    private final Deque<byte[]> received = new ArrayDeque<>();
+    /* {unacknowledged bytes, send time} of every WRTE still in flight */
+    private final Deque<long[]> inFlight = new ArrayDeque<>();
+
+    private int remoteId;
+    private boolean opened;
+    private boolean closed;
+    private boolean remoteClosed;
+    private boolean writeReady;
+    private long sendWindow;
+    private long inFlightBytes;
+    private IOException failure;
+
+    AdbStream(AdbClient client, int localId) {
+        this.client = client;
+        this.localId = localId;
+    }
+
+    int getLocalId() {
+        return localId;
+    }
+
+    synchronized int getRemoteId() {
+        return remoteId;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed || (remoteClosed && received.isEmpty());
+    }
+
+    /**
+     * Returns the next packet of data, blocking until one arrives. Throws once the
+     * stream has been closed and everything was read.
+     */
+    public synchronized byte[] read() throws IOException, InterruptedException {
+        while (received.isEmpty() && !remoteClosed && !closed && failure == null) {
+            wait();
+        }
+        if (!received.isEmpty()) {
+            return received.pollFirst();
+        }
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+        throw new IOException("Stream closed");
+    }
+
+    /**
+     * Like {@link #read()} but returns null at the end of the stream.
+     */
+    private synchronized byte[] readOrEnd() throws IOException, InterruptedException {
+        while (received.isEmpty() && !remoteClosed && !closed && failure == null) {
+            wait();
+        }
+        if (!received.isEmpty()) {
+            return received.pollFirst();
+        }
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+        return null;
+    }
+
+    /**
+     * Reads until the remote side closes the stream, e.g. the output of an exec:
+     * service.
+     */
+    public byte[] readAll() throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] data;
+        while ((data = readOrEnd()) != null) {
+            out.write(data, 0, data.length);
+        }
+        return out.toByteArray();
+    }
+
+    public String readAllString() throws IOException, InterruptedException {
+        return new String(readAll(), StandardCharsets.UTF_8);
+    }
+
+    public void write(String data) throws IOException, InterruptedException {
+        write(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void write(byte[] data) throws IOException, InterruptedException {
+        write(data, 0, data.length);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException, InterruptedException {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Writes every remaining byte of {@code source}, split into messages sized by
+     * the host's {@link AdbFlowController} and paced by the stream's flow control.
+     */
+    public void write(ByteBuffer source) throws IOException, InterruptedException {
+        while (source.hasRemaining()) {
+            int wanted = Math.min(client.getMaxData(), client.getFlowController().getChunkSize());
+            int chunk = acquireSendCredit(Math.min(source.remaining(), wanted));
+            ByteBuffer payload = BufferPool.acquire(chunk);
+            ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + chunk);
+            payload.put(slice);
+            payload.flip();
+            source.position(source.position() + chunk);
+            client.send(AdbProtocol.CMD_WRTE, localId, getRemoteId(), payload);
+        }
+    }
+
+    /**
+     * Blocks until the device acknowledged every byte written so far.
+     */
+    public synchronized void awaitAcknowledged() throws IOException, InterruptedException {
+        while (inFlightBytes > 0 && isWritable()) {
+            wait();
+        }
+        checkWritable();
+    }
+
+    /**
+     * Blocking {@link InputStream} view of the data the device sends, ends when
+     * the remote side closes the stream.
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            private byte[] current = new byte[0];
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                while (position == current.length) {
+                    try {
+                        current = readOrEnd();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    position = 0;
+                    if (current == null) {
+                        current = new byte[0];
+                        return -1;
+                    }
+                }
+                int count = Math.min(length, current.length - position);
+                System.arraycopy(current, position, buffer, offset, count);
+                position += count;
+                return count;
+            }
+        };
+    }
+
+    /**
+     * {@link OutputStream} view of the stream, every write is sent right away so
+     * callers should buffer small writes themselves.
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                try {
+                    AdbStream.this.write(buffer, offset, length);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        client.closeStream(this);
+    }
+
+    synchronized void awaitOpen() throws IOException, InterruptedException {
+        while (!opened && !remoteClosed && failure == null) {
+            wait();
+        }
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+        if (!opened) {
+            throw new IOException("Stream open refused by device");
+        }
+    }
+
+    /**
+     * Waits until the device allows more data and returns how many of the
+     * {@code wanted} bytes may be sent now.
+     */
+    private synchronized int acquireSendCredit(int wanted) throws IOException, InterruptedException {
+        if (client.isDelayedAck()) {
+            while ((sendWindow <= 0 || inFlightBytes >= client.getFlowController().getWindow()) && isWritable()) {
+                wait();
+            }
+            checkWritable();
+            long allowed = Math.min(sendWindow, client.getFlowController().getWindow() - inFlightBytes);
+            int granted = (int) Math.min(wanted, allowed);
+            sendWindow -= granted;
+            markSent(granted);
+            return granted;
+        }
+        while (!writeReady && isWritable()) {
+            wait();
+        }
+        checkWritable();
+        writeReady = false;
+        markSent(wanted);
+        return wanted;
+    }
+
+    /* Recorded before the WRTE goes out, its OKAY may arrive before send() returns */
+    private void markSent(int bytes) {
+        inFlight.addLast(new long[]{bytes, System.nanoTime()});
+        inFlightBytes += bytes;
+    }
+
+    /**
+     * Retires {@code bytes} of the oldest in-flight writes and reports the
+     * latency of the last one they completed.
+     */
+    private void markAcked(long bytes) {
+        long now = System.nanoTime();
+        long latency = -1;
+        long acked = 0;
+        while (bytes > 0 && !inFlight.isEmpty()) {
+            long[] write = inFlight.peekFirst();
+            long taken = Math.min(bytes, write[0]);
+            write[0] -= taken;
+            bytes -= taken;
+            acked += taken;
+            if (write[0] == 0) {
+                inFlight.pollFirst();
+                latency = now - write[1];
+            }
+        }
+        inFlightBytes -= acked;
+        if (latency >= 0) {
+            client.getFlowController().onAck(acked, latency);
+        }
+    }
+
+    private boolean isWritable() {
+        return !closed && !remoteClosed && failure == null;
+    }
+
+    private void checkWritable() throws IOException {
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+        if (closed || remoteClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    synchronized void onOkay(int remoteId, int ackedBytes) {
+        boolean opening = !opened;
+        if (!opened) {
+            opened = true;
+            this.remoteId = remoteId;
+        }
+        if (client.isDelayedAck()) {
+            if (ackedBytes > 0) {
+                sendWindow += ackedBytes;
+                if (!opening) {
+                    markAcked(ackedBytes);
+                }
+            }
+        } else {
+            writeReady = true;
+            if (!opening) {
+                markAcked(inFlightBytes);
+            }
+        }
+        notifyAll();
+    }
+
+    synchronized void onData(byte[] data) {
+        received.addLast(data);
+        notifyAll();
+    }
+
+    synchronized void onRemoteClose() {
+        remoteClosed = true;
+        notifyAll();
+    }
+
+    synchronized void onFailure(IOException e) {
+        failure = e;
+        if (inFlightBytes > 0 && AdbTimeoutException.isTimeout(e)) {
+            client.getFlowController().onTimeout();
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,150 @@
+package com.aurora.services.adb;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client side of the adb file sync protocol on a {@code sync:} stream, the way
+ * {@code adb push} copies files. Files are framed in {@code DATA} packets of at
+ * most {@link #SYNC_DATA_MAX} bytes, which several at a time are packed into one
+ * WRTE so the frame headers cost no extra messages.
+ * <p>
+ * {@code SEND_V2} is used where adbd advertises {@code sendrecv_v2}; files are
+ * sent uncompressed either way, APKs and OBBs are compressed already.
+ */
+public class AdbSync implements Closeable {
+
+    private static final int ID_SEND = id("SEND");
+    private static final int ID_SEND_V2 = id("SND2");
+    private static final int ID_DATA = id("DATA");
+    private static final int ID_DONE = id("DONE");
+    private static final int ID_OKAY = id("OKAY");
+    private static final int ID_FAIL = id("FAIL");
+    private static final int ID_QUIT = id("QUIT");
+
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+    private static final int FRAME_HEADER = 8;
+    private static final int FRAMES_PER_WRITE = 16;
+    private static final int MODE_REGULAR_FILE = 0100000;
+
+    private final AdbStream stream;
+    private final DataInputStream in;
+    private final boolean sendV2;
+
+    public AdbSync(AdbClient client) throws IOException, InterruptedException {
+        stream = client.open("sync:");
+        in = new DataInputStream(stream.getInputStream());
+        sendV2 = client.getFeatures().contains(AdbProtocol.FEATURE_SENDRECV_V2);
+    }
+
+    /**
+     * Copies every byte of {@code source} to {@code remotePath} with permissions
+     * {@code mode}. adbd creates missing parent directories, replaces an existing
+     * file and removes the partial file if the transfer fails.
+     */
+    public void send(String remotePath, int mode, SourceReader source) throws IOException, InterruptedException {
+        byte[] path = remotePath.getBytes(StandardCharsets.UTF_8);
+        if (sendV2) {
+            ByteBuffer request = header(ID_SEND_V2, path.length, path.length + 12);
+            request.put(path);
+            request.putInt(ID_SEND_V2).putInt(MODE_REGULAR_FILE | mode).putInt(0);
+            send(request);
+        } else {
+            byte[] target = (remotePath + "," + (MODE_REGULAR_FILE | mode)).getBytes(StandardCharsets.UTF_8);
+            ByteBuffer request = header(ID_SEND, target.length, target.length);
+            request.put(target);
+            send(request);
+        }
+
+        ByteBuffer frames = BufferPool.acquire((FRAME_HEADER + SYNC_DATA_MAX) * FRAMES_PER_WRITE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            ByteBuffer buffer;
+            while ((buffer = source.next()) != null) {
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (frames.remaining() < FRAME_HEADER + 1) {
+                            flush(frames);
+                        }
+                        int length = Math.min(Math.min(buffer.remaining(), SYNC_DATA_MAX),
+                                frames.remaining() - FRAME_HEADER);
+                        frames.putInt(ID_DATA).putInt(length);
+                        ByteBuffer slice = buffer.duplicate();
+                        slice.limit(slice.position() + length);
+                        frames.put(slice);
+                        buffer.position(buffer.position() + length);
+                    }
+                } finally {
+                    source.recycle(buffer);
+                }
+            }
+            if (frames.remaining() < FRAME_HEADER) {
+                flush(frames);
+            }
+            frames.putInt(ID_DONE).putInt((int) (System.currentTimeMillis() / 1000));
+            flush(frames);
+        } finally {
+            BufferPool.release(frames);
+        }
+        awaitStatus(remotePath);
+    }
+
+    /**
+     * Ends the sync session and closes the stream.
+     */
+    @Override
+    public void close() {
+        try {
+            if (!stream.isClosed()) {
+                send(header(ID_QUIT, 0, 0));
+            }
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void flush(ByteBuffer frames) throws IOException, InterruptedException {
+        frames.flip();
+        stream.write(frames);
+        frames.clear();
+    }
+
+    private void send(ByteBuffer request) throws IOException, InterruptedException {
+        request.flip();
+        stream.write(request);
+    }
+
+    private void awaitStatus(String remotePath) throws IOException {
+        byte[] header = new byte[FRAME_HEADER];
+        in.readFully(header);
+        ByteBuffer reply = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        int id = reply.getInt();
+        int length = reply.getInt();
+        if (id == ID_OKAY) {
+            return;
+        }
+        if (id == ID_FAIL) {
+            byte[] message = new byte[length];
+            in.readFully(message);
+            throw new IOException("Push to " + remotePath + " failed: "
+                    + new String(message, StandardCharsets.UTF_8));
+        }
+        throw new IOException("Unexpected sync reply 0x" + Integer.toHexString(id));
+    }
+
+    private static ByteBuffer header(int id, int length, int payload) {
+        return ByteBuffer.allocate(FRAME_HEADER + payload)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(id)
+                .putInt(length);
+    }
+
+    private static int id(String name) {
+        return ByteBuffer.wrap(name.getBytes(StandardCharsets.US_ASCII)).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+}
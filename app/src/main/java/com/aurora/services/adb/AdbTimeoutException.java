@@ -0,0 +1,26 @@
+package com.aurora.services.adb;
+
+import java.io.IOException;
+
+/**
+ * An adb operation ran past its deadline or stopped making progress, the
+ * connection it ran on has been torn down.
+ */
+public class AdbTimeoutException extends IOException {
+
+    public AdbTimeoutException(String message) {
+        super(message);
+    }
+
+    /**
+     * Whether {@code throwable} or any of its causes is a timeout.
+     */
+    public static boolean isTimeout(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AdbTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+package com.aurora.services.adb;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upper bounds for every adb operation, enforced by {@link AdbWatchdog}. They are
+ * generous on purpose, their job is to bound the tail, not to race the device.
+ */
+public final class AdbTimeouts {
+
+    public static final long CONNECT = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Time the user has to confirm the key on the device.
+     */
+    public static final long AUTHORIZATION = TimeUnit.SECONDS.toMillis(60);
+
+    public static final long PROBE = TimeUnit.SECONDS.toMillis(10);
+    public static final long CREATE = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Commit includes dexopt of the package, which is slow on older devices.
+     */
+    public static final long COMMIT = TimeUnit.MINUTES.toMillis(5);
+
+    public static final long UNINSTALL = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * A write that moves no bytes in either direction for this long is stalled.
+     */
+    public static final long WRITE_STALL = TimeUnit.SECONDS.toMillis(20);
+
+    /**
+     * Writes from a live source, a download feeding a pipe, are paced by its
+     * producer. They get a deadline of hours instead of one from their size, and
+     * may pause this long before they count as stalled.
+     */
+    public static final long LIVE_SOURCE = TimeUnit.HOURS.toMillis(2);
+    public static final long LIVE_SOURCE_STALL = TimeUnit.MINUTES.toMillis(2);
+
+    private static final long WRITE_BASE = TimeUnit.SECONDS.toMillis(30);
+    private static final long WRITE_MIN_BYTES_PER_SECOND = 512 * 1024;
+
+    private AdbTimeouts() {
+    }
+
+    /**
+     * Deadline for writing {@code bytes}, assuming at least a slow Wi-Fi link.
+     */
+    public static long write(long bytes) {
+        return WRITE_BASE + bytes * 1000 / WRITE_MIN_BYTES_PER_SECOND;
+    }
+}
@@ -0,0 +1,175 @@
+package com.aurora.services.adb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * TLS setup for wireless debugging (Android 11+), which upgrades the connection
+ * with STLS right after CNXN. adbd authenticates us by the public key of the
+ * client certificate, so the certificate is a self-signed one around the same
+ * key pair as adbkey. The device certificate is not verified, like adb does.
+ * <p>
+ * Every host gets its own {@link SSLContext} that lives as long as this object,
+ * so the session tickets of a host survive the connection and a reconnect after
+ * an idle timeout resumes the session instead of doing a full handshake.
+ */
+public class AdbTlsContext {
+
+    private static final String PROTOCOL_TLS_13 = "TLSv1.3";
+    private static final String SUBJECT = "aurora-services";
+    private static final int SESSION_CACHE_SIZE = 8;
+    private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(12);
+
+    private static final byte[] OID_SHA256_WITH_RSA = {
+            0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x0b
+    };
+    private static final byte[] OID_COMMON_NAME = {0x06, 0x03, 0x55, 0x04, 0x03};
+
+    private final KeyManager[] keyManagers;
+    private final TrustManager[] trustManagers = {new TrustAllManager()};
+    private final Map<String, SSLContext> contexts = new HashMap<>();
+
+    public AdbTlsContext(KeyPair keyPair) throws GeneralSecurityException, IOException {
+        char[] password = new char[0];
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("adbkey", keyPair.getPrivate(), password,
+                new Certificate[]{createCertificate(keyPair)});
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore, password);
+        keyManagers = factory.getKeyManagers();
+    }
+
+    /**
+     * Returns a client mode engine for {@code host:port}, resuming the last
+     * session with that host when the device still accepts it.
+     */
+    public SSLEngine createEngine(String host, int port) throws IOException {
+        SSLEngine engine = contextFor(host + ":" + port).createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (Arrays.asList(engine.getSupportedProtocols()).contains(PROTOCOL_TLS_13)) {
+            engine.setEnabledProtocols(new String[]{PROTOCOL_TLS_13});
+        }
+        return engine;
+    }
+
+    private synchronized SSLContext contextFor(String key) throws IOException {
+        SSLContext context = contexts.get(key);
+        if (context == null) {
+            try {
+                context = SSLContext.getInstance("TLS");
+                context.init(keyManagers, trustManagers, new SecureRandom());
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to set up TLS", e);
+            }
+            context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            contexts.put(key, context);
+        }
+        return context;
+    }
+
+    /**
+     * Builds a minimal self-signed X.509 v3 certificate for {@code keyPair}.
+     */
+    static X509Certificate createCertificate(KeyPair keyPair) throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        byte[] algorithm = sequence(OID_SHA256_WITH_RSA, new byte[]{0x05, 0x00});
+        byte[] name = sequence(tlv(0x31, sequence(OID_COMMON_NAME,
+                tlv(0x0c, SUBJECT.getBytes(StandardCharsets.UTF_8)))));
+        byte[] tbs = sequence(
+                tlv(0xa0, tlv(0x02, new byte[]{0x02})),
+                tlv(0x02, BigInteger.valueOf(now).toByteArray()),
+                algorithm,
+                name,
+                sequence(time(now - TimeUnit.DAYS.toMillis(1)), time(now + TimeUnit.DAYS.toMillis(365 * 20))),
+                name,
+                keyPair.getPublic().getEncoded());
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(tbs);
+        byte[] signed = signature.sign();
+        byte[] bitString = new byte[signed.length + 1];
+        System.arraycopy(signed, 0, bitString, 1, signed.length);
+
+        byte[] der = sequence(tbs, algorithm, tlv(0x03, bitString));
+        return (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(der));
+    }
+
+    private static byte[] time(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        boolean utcTime = Integer.parseInt(format.format(new Date(millis))) < 2050;
+        format.applyPattern(utcTime ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'");
+        return tlv(utcTime ? 0x17 : 0x18, format.format(new Date(millis)).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] sequence(byte[]... elements) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (byte[] element : elements) {
+            content.write(element, 0, element.length);
+        }
+        return tlv(0x30, content.toByteArray());
+    }
+
+    private static byte[] tlv(int tag, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 6);
+        out.write(tag);
+        int length = value.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >>> (i * 8));
+            }
+        }
+        out.write(value, 0, value.length);
+        return out.toByteArray();
+    }
+
+    private static class TrustAllManager implements X509TrustManager {
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
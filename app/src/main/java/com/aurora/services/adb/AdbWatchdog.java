@@ -0,0 +1,103 @@
+package com.aurora.services.adb;
+
+import com.aurora.services.utils.Log;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces deadlines on blocking adb operations. A caller wraps the operation in
+ * a {@link Watch}; once it runs past its deadline, or a write stops moving bytes,
+ * the connection is torn down. That fails every stream on it, so whatever thread
+ * is blocked in a read, write or command wakes up with an
+ * {@link AdbTimeoutException} in its cause chain.
+ */
+public class AdbWatchdog {
+
+    private static final long CHECK_INTERVAL = 500;
+
+    private static AdbWatchdog instance;
+
+    private final Set<Watch> watches = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    public static synchronized AdbWatchdog get() {
+        if (instance == null) {
+            instance = new AdbWatchdog();
+        }
+        return instance;
+    }
+
+    private AdbWatchdog() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "adb-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public Watch watch(AdbClient client, String operation, long timeout) {
+        return watch(client, operation, timeout, 0);
+    }
+
+    /**
+     * Starts watching {@code operation} on {@code client}. With a {@code stallTimeout}
+     * the operation also fails once the connection saw no traffic for that long.
+     */
+    public Watch watch(AdbClient client, String operation, long timeout, long stallTimeout) {
+        Watch watch = new Watch(client, operation, timeout, stallTimeout);
+        watches.add(watch);
+        return watch;
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        for (Watch watch : watches) {
+            if (now >= watch.deadline) {
+                watch.expire("%s on %s:%d timed out after %d s", watch.timeout);
+            } else if (watch.stallTimeout > 0
+                    && now - Math.max(watch.started, watch.client.getLastActivity()) >= watch.stallTimeout) {
+                watch.expire("%s on %s:%d stalled for %d s", watch.stallTimeout);
+            }
+        }
+    }
+
+    public class Watch implements Closeable {
+
+        private final AdbClient client;
+        private final String operation;
+        private final long timeout;
+        private final long stallTimeout;
+        private final long started;
+        private final long deadline;
+
+        private Watch(AdbClient client, String operation, long timeout, long stallTimeout) {
+            this.client = client;
+            this.operation = operation;
+            this.timeout = timeout;
+            this.stallTimeout = stallTimeout;
+            this.started = System.currentTimeMillis();
+            this.deadline = started + timeout;
+        }
+
+        private void expire(String format, long limit) {
+            if (!watches.remove(this)) {
+                return;
+            }
+            String message = String.format(format, operation, client.getHost(), client.getPort(),
+                    TimeUnit.MILLISECONDS.toSeconds(limit));
+            Log.w(message);
+            client.abort(new AdbTimeoutException(message));
+        }
+
+        @Override
+        public void close() {
+            watches.remove(this);
+        }
+    }
+}
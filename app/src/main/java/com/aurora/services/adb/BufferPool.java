@@ -0,0 +1,87 @@
+package com.aurora.services.adb;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide pool of direct buffers in power-of-two size classes, so the
+ * transport does not allocate (or let the GC chase) a buffer per packet.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 21;
+    private static final int MAX_POOLED_BYTES_PER_CLASS = 8 * 1024 * 1024;
+
+    private static final SizeClass[] POOLS = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    static {
+        for (int i = 0; i < POOLS.length; i++) {
+            POOLS[i] = new SizeClass();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * Returns a cleared direct buffer whose limit is {@code size}. The capacity
+     * may be larger, callers must not rely on it.
+     */
+    public static ByteBuffer acquire(int size) {
+        int index = indexFor(size);
+        if (index < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = POOLS[index].buffers.poll();
+        if (buffer != null) {
+            POOLS[index].count.decrementAndGet();
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int index = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (index < 0 || index >= POOLS.length) {
+            return;
+        }
+        int maxPooled = Math.max(2, MAX_POOLED_BYTES_PER_CLASS / capacity);
+        SizeClass pool = POOLS[index];
+        if (pool.count.incrementAndGet() > maxPooled) {
+            pool.count.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.buffers.offer(buffer);
+    }
+
+    private static int indexFor(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        if (shift > MAX_SHIFT) {
+            return -1;
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * The pooled buffers of one size and their count, which the queue can only
+     * tell in linear time.
+     */
+    private static final class SizeClass {
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+    }
+}
@@ -0,0 +1,14 @@
+package com.aurora.services.adb;
+
+import java.io.IOException;
+
+/**
+ * The package manager turned a request down. The adb connection it came over
+ * is fine and can serve the next install.
+ */
+public class PackageManagerException extends IOException {
+
+    public PackageManagerException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,81 @@
+package com.aurora.services.adb;
+
+import java.util.Set;
+
+/**
+ * Builds package manager commands for the fastest entry point the device
+ * advertises. {@code abb_exec:} talks to the package service binder directly and
+ * {@code cmd package} skips the VM start of the {@code pm} script, which is only
+ * used on devices older than Android 7.
+ */
+public class PackageShell {
+
+    public enum Backend {
+        ABB_EXEC,
+        CMD,
+        PM
+    }
+
+    private static final char ABB_ARG_DELIMITER = '\0';
+
+    private final Backend backend;
+    private final boolean hasCmd;
+
+    public PackageShell(Set<String> features) {
+        hasCmd = features.contains(AdbProtocol.FEATURE_CMD);
+        if (features.contains(AdbProtocol.FEATURE_ABB_EXEC)) {
+            backend = Backend.ABB_EXEC;
+        } else if (hasCmd) {
+            backend = Backend.CMD;
+        } else {
+            backend = Backend.PM;
+        }
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Whether install-write needs an explicit {@code -} to read the APK from stdin.
+     */
+    public boolean needsStdinMarker() {
+        return backend != Backend.PM;
+    }
+
+    /**
+     * Service destination that runs {@code package <args>} on the device.
+     */
+    public String destination(String... args) {
+        if (backend == Backend.ABB_EXEC) {
+            StringBuilder builder = new StringBuilder("abb_exec:package");
+            for (String arg : args) {
+                builder.append(ABB_ARG_DELIMITER).append(arg);
+            }
+            return builder.toString();
+        }
+        return "exec:" + commandLine(args);
+    }
+
+    /**
+     * Shell command line for {@code package <args>}, for use inside pipelines
+     * where abb_exec is not an option.
+     */
+    public String commandLine(String... args) {
+        StringBuilder builder = new StringBuilder(hasCmd ? "cmd package" : "pm");
+        for (String arg : args) {
+            builder.append(' ').append(quote(arg));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Single-quotes {@code arg} for sh when it contains anything but safe characters.
+     */
+    public static String quote(String arg) {
+        if (!arg.isEmpty() && arg.matches("[A-Za-z0-9_@%+=:,./-]+")) {
+            return arg;
+        }
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+}
@@ -0,0 +1,185 @@
+package com.aurora.services.adb;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads exactly {@code length} bytes of an APK ahead of the transport. A reader
+ * thread fills a small ring of buffers while the caller sends the previous ones,
+ * so disk and network work overlap instead of taking turns.
+ * <p>
+ * Regular files are memory-mapped chunk by chunk and faulted in by the reader
+ * thread, or read at absolute positions where they can not be mapped, so several
+ * readers can share one file; anything else (pipes, sockets from a content
+ * provider) is read in order into pooled buffers.
+ */
+public class SourceReader implements Closeable {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAPPED_CHUNK_SIZE = 2 * 1024 * 1024;
+    private static final int RING_SIZE = 4;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static final ExecutorService readers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "adb-source-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    private final Semaphore slots = new Semaphore(RING_SIZE);
+    private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(RING_SIZE + 1);
+
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    /**
+     * Starts reading {@code length} bytes from {@code offset} of {@code channel},
+     * or everything up to the end of the channel if {@code length} is negative.
+     * The channel stays owned by the caller and must outlive this reader.
+     */
+    public SourceReader(FileChannel channel, long offset, long length) {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        readers.execute(this::readAhead);
+    }
+
+    /**
+     * Returns the next chunk, or null once all bytes were handed out. Every chunk
+     * must be given back with {@link #recycle}.
+     */
+    public ByteBuffer next() throws IOException, InterruptedException {
+        ByteBuffer buffer = filled.take();
+        if (buffer == END) {
+            filled.put(END);
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            return null;
+        }
+        return buffer;
+    }
+
+    public void recycle(ByteBuffer buffer) {
+        if (!(buffer instanceof MappedByteBuffer)) {
+            BufferPool.release(buffer);
+        }
+        slots.release();
+    }
+
+    /**
+     * Writes every byte of the source to {@code stream}, returns the byte count.
+     */
+    public long transferTo(AdbStream stream) throws IOException, InterruptedException {
+        long transferred = 0;
+        ByteBuffer buffer;
+        while ((buffer = next()) != null) {
+            try {
+                transferred += buffer.remaining();
+                stream.write(buffer);
+            } finally {
+                recycle(buffer);
+            }
+        }
+        return transferred;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // unblock the reader if it waits for a slot, it checks closed afterwards
+        slots.release(RING_SIZE);
+        ByteBuffer buffer;
+        while ((buffer = filled.poll()) != null) {
+            if (buffer != END && !(buffer instanceof MappedByteBuffer)) {
+                BufferPool.release(buffer);
+            }
+        }
+    }
+
+    private void readAhead() {
+        long position = offset;
+        long end = length < 0 ? Long.MAX_VALUE : offset + length;
+        try {
+            boolean seekable = isSeekable(end);
+            boolean mapped = seekable;
+            if (!seekable && offset > 0) {
+                channel.position(offset);
+            }
+            while (position < end) {
+                slots.acquire();
+                if (closed) {
+                    return;
+                }
+                ByteBuffer buffer = null;
+                if (mapped) {
+                    int size = (int) Math.min(MAPPED_CHUNK_SIZE, end - position);
+                    try {
+                        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                        map.load();
+                        buffer = map;
+                    } catch (IOException e) {
+                        if (position != offset) {
+                            throw e;
+                        }
+                        // some providers hand out descriptors that can not be mapped
+                        mapped = false;
+                    }
+                }
+                if (buffer == null) {
+                    buffer = BufferPool.acquire((int) Math.min(CHUNK_SIZE, end - position));
+                    while (buffer.hasRemaining()) {
+                        int read = seekable
+                                ? channel.read(buffer, position + buffer.position())
+                                : channel.read(buffer);
+                        if (read < 0) {
+                            if (length < 0) {
+                                end = position + buffer.position();
+                                break;
+                            }
+                            long missing = end - position - buffer.position();
+                            BufferPool.release(buffer);
+                            throw new EOFException("Source ended " + missing + " bytes early");
+                        }
+                    }
+                    buffer.flip();
+                    if (!buffer.hasRemaining()) {
+                        BufferPool.release(buffer);
+                        slots.release();
+                        break;
+                    }
+                }
+                position += buffer.remaining();
+                filled.put(buffer);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException("Source read interrupted");
+        }
+        try {
+            filled.put(END);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private boolean isSeekable(long end) {
+        try {
+            return channel.size() >= end;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.aurora.services.helper;
+
+import android.content.Intent;
+import android.content.IntentSender;
+import android.content.pm.PackageInstaller;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs on the device as the shell user, started with app_process by
+ * {@link com.aurora.services.adb.AdbInstallHelper}. It drives PackageInstaller
+ * sessions directly through the package manager binder and talks to the service
+ * over stdin/stdout with a small binary protocol, so installing a package needs
+ * no process spawn per step.
+ * <p>
+ * Requests are an op byte followed by its arguments, written with
+ * {@link DataOutputStream}. {@link #OP_WRITE} is followed by the raw split bytes,
+ * {@link #OP_WRITE_CHUNKED}, for splits of unknown size, by {@code int length}
+ * prefixed chunks of them up to an empty chunk.
+ * Every request is answered with {@code int status, UTF message, long value}.
+ * <p>
+ * While a split is written, the bytes that reached the session are recorded in a
+ * progress file every {@link #CHECKPOINT_BYTES}, so a write cut off with the adb
+ * connection can be resumed by the next helper, see {@link #OP_PROGRESS}.
+ */
+public final class InstallHelper {
+
+    public static final int MAGIC = 0x48525541;
+    public static final int VERSION = 4;
+
+    public static final int OP_CREATE = 1;
+    public static final int OP_WRITE = 2;
+    public static final int OP_WRITE_FILE = 3;
+    public static final int OP_COMMIT = 4;
+    public static final int OP_ABANDON = 5;
+    public static final int OP_PROGRESS = 6;
+    public static final int OP_WRITE_CHUNKED = 7;
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+
+    private static final int INSTALL_REPLACE_EXISTING = 0x00000002;
+    private static final long COMMIT_TIMEOUT_MINUTES = 10;
+    private static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+    private static final File PROGRESS_DIR = new File("/data/local/tmp/aurora-progress");
+
+    private final Object installer;
+    private final Map<Integer, Object> sessions = new HashMap<>();
+    private final byte[] buffer = new byte[256 * 1024];
+
+    public static void main(String[] args) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in), 256 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        // stdout carries the protocol, anything the framework prints must not end up there
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err)));
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+
+        new InstallHelper().serve(in, out);
+        System.exit(0);
+    }
+
+    private InstallHelper() throws ReflectiveOperationException {
+        Object binder = Class.forName("android.os.ServiceManager")
+                .getMethod("getService", String.class)
+                .invoke(null, "package");
+        Object packageManager = Class.forName("android.content.pm.IPackageManager$Stub")
+                .getMethod("asInterface", IBinder.class)
+                .invoke(null, binder);
+        installer = packageManager.getClass().getMethod("getPackageInstaller").invoke(packageManager);
+    }
+
+    private void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        while (true) {
+            int op = in.read();
+            if (op < 0) {
+                return;
+            }
+            try {
+                switch (op) {
+                    case OP_CREATE:
+                        reply(out, STATUS_OK, "", create(in.readLong(), in.readUTF(), in.readBoolean(), in.readInt(),
+                                in.readUTF()));
+                        break;
+                    case OP_WRITE:
+                        reply(out, STATUS_OK, "", write(in.readInt(), in.readUTF(), in.readLong(), in.readLong(), in));
+                        break;
+                    case OP_WRITE_FILE:
+                        reply(out, STATUS_OK, "", writeFile(in.readInt(), in.readUTF(), in.readUTF()));
+                        break;
+                    case OP_COMMIT: {
+                        Intent result = commit(in.readInt());
+                        int status = result.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+                        String message = result.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+                        reply(out, STATUS_OK, message != null ? message : "", status);
+                        break;
+                    }
+                    case OP_ABANDON:
+                        abandon(in.readInt());
+                        reply(out, STATUS_OK, "", 0);
+                        break;
+                    case OP_WRITE_CHUNKED:
+                        reply(out, STATUS_OK, "", writeChunked(in.readInt(), in.readUTF(), in));
+                        break;
+                    case OP_PROGRESS:
+                        reply(out, STATUS_OK, "", progress(in.readInt(), in.readUTF(), in.readLong()));
+                        break;
+                    default:
+                        reply(out, STATUS_ERROR, "Unknown op " + op, 0);
+                        return;
+                }
+            } catch (EOFException e) {
+                return;
+            } catch (Exception e) {
+                Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+                reply(out, STATUS_ERROR, String.valueOf(cause), 0);
+            }
+        }
+    }
+
+    private static void reply(DataOutputStream out, int status, String message, long value) throws IOException {
+        out.writeInt(status);
+        out.writeUTF(message);
+        out.writeLong(value);
+        out.flush();
+    }
+
+    /**
+     * Creates a session. With {@code inheritPackage} set, splits that are not
+     * written to it are taken over from the installed version of that package.
+     */
+    private int create(long totalSize, String installerPackageName, boolean replace, int userId,
+                       String inheritPackage) throws Exception {
+        PackageInstaller.SessionParams params;
+        if (inheritPackage.isEmpty()) {
+            params = new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        } else {
+            params = new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_INHERIT_EXISTING);
+            params.setAppPackageName(inheritPackage);
+        }
+        if (totalSize > 0) {
+            params.setSize(totalSize);
+        }
+        if (replace) {
+            Field installFlags = PackageInstaller.SessionParams.class.getDeclaredField("installFlags");
+            installFlags.setAccessible(true);
+            installFlags.setInt(params, installFlags.getInt(params) | INSTALL_REPLACE_EXISTING);
+        }
+        Method method = findMethod(installer, "createSession");
+        if (method.getParameterTypes().length == 4) {
+            return (Integer) method.invoke(installer, params, installerPackageName, null, userId);
+        }
+        return (Integer) method.invoke(installer, params, installerPackageName, userId);
+    }
+
+    /**
+     * Copies {@code length} bytes of the request into the session. On failure the
+     * remaining bytes are still consumed so the next request stays in sync.
+     */
+    private long write(int sessionId, String name, long offset, long length, InputStream in) throws Exception {
+        // bytes taken from the request and bytes that reached the session differ
+        // when a write into the session fails
+        long remaining = length;
+        long written = 0;
+        long checkpoint = 0;
+        try {
+            ParcelFileDescriptor fd = (ParcelFileDescriptor) findMethod(session(sessionId), "openWrite")
+                    .invoke(session(sessionId), name, offset, length);
+            try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd)) {
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    remaining -= read;
+                    // the stream is unbuffered, once write returns the bytes are in the session
+                    out.write(buffer, 0, read);
+                    written += read;
+                    if (written - checkpoint >= CHECKPOINT_BYTES) {
+                        checkpoint = written;
+                        saveProgress(sessionId, name, offset, checkpoint);
+                    }
+                }
+            }
+            return length;
+        } catch (Exception e) {
+            saveProgress(sessionId, name, offset, written);
+            throw e;
+        } finally {
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * Copies chunks of the request into the session until the empty chunk, for a
+     * split whose size is unknown up front. On failure the remaining chunks are
+     * still consumed. Progress is not recorded, such splits can't be resumed.
+     */
+    private long writeChunked(int sessionId, String name, DataInputStream in) throws Exception {
+        long written = 0;
+        int remaining = in.readInt();
+        try {
+            ParcelFileDescriptor fd = (ParcelFileDescriptor) findMethod(session(sessionId), "openWrite")
+                    .invoke(session(sessionId), name, 0L, -1L);
+            try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd)) {
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    remaining -= read;
+                    // the next length is taken before writing, a failed write must not leave it unread
+                    if (remaining == 0) {
+                        remaining = in.readInt();
+                    }
+                    out.write(buffer, 0, read);
+                    written += read;
+                }
+            }
+            return written;
+        } finally {
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                remaining -= read;
+                if (remaining == 0) {
+                    remaining = in.readInt();
+                }
+            }
+        }
+    }
+
+    private long writeFile(int sessionId, String name, String path) throws Exception {
+        try (FileInputStream in = new FileInputStream(path)) {
+            long length = in.getChannel().size();
+            ParcelFileDescriptor fd = (ParcelFileDescriptor) findMethod(session(sessionId), "openWrite")
+                    .invoke(session(sessionId), name, 0L, length);
+            try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(fd)) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Bytes a cut off write of split {@code name}, which started at
+     * {@code offset}, got into the session; 0 if nothing was recorded.
+     */
+    private static long progress(int sessionId, String name, long offset) {
+        File file = progressFile(sessionId, name, offset);
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readLong();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void saveProgress(int sessionId, String name, long offset, long written) {
+        File file = progressFile(sessionId, name, offset);
+        File temporary = new File(file.getPath() + ".tmp");
+        PROGRESS_DIR.mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary))) {
+            out.writeLong(written);
+        } catch (IOException e) {
+            return;
+        }
+        // a rename never leaves a torn value behind, even if we are killed meanwhile
+        temporary.renameTo(file);
+    }
+
+    private static void clearProgress(int sessionId) {
+        File[] files = PROGRESS_DIR.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(sessionId + "-")) {
+                file.delete();
+            }
+        }
+    }
+
+    private static File progressFile(int sessionId, String name, long offset) {
+        return new File(PROGRESS_DIR, sessionId + "-" + name.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + offset);
+    }
+
+    private Intent commit(int sessionId) throws Exception {
+        Object session = session(sessionId);
+        LocalIntentReceiver receiver = new LocalIntentReceiver();
+        Method method = findMethod(session, "commit");
+        if (method.getParameterTypes().length == 2) {
+            method.invoke(session, receiver.getIntentSender(), false);
+        } else {
+            method.invoke(session, receiver.getIntentSender());
+        }
+        sessions.remove(sessionId);
+        clearProgress(sessionId);
+        Intent result = receiver.results.poll(COMMIT_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        if (result == null) {
+            throw new IOException("Timed out waiting for the commit result");
+        }
+        return result;
+    }
+
+    private void abandon(int sessionId) throws Exception {
+        Object session = session(sessionId);
+        sessions.remove(sessionId);
+        clearProgress(sessionId);
+        findMethod(session, "abandon").invoke(session);
+    }
+
+    private Object session(int sessionId) throws Exception {
+        Object session = sessions.get(sessionId);
+        if (session == null) {
+            session = findMethod(installer, "openSession").invoke(installer, sessionId);
+            sessions.put(sessionId, session);
+        }
+        return session;
+    }
+
+    private static Method findMethod(Object target, String name) throws NoSuchMethodException {
+        for (Method method : target.getClass().getMethods()) {
+            if (method.getName().equals(name)) {
+                return method;
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    /**
+     * Minimal IIntentSender that receives the commit status. The binder is parsed
+     * by hand so no hidden interface has to be compiled against; only the leading
+     * {@code code, intent} arguments of send() are read, which never changed.
+     */
+    private static class LocalIntentReceiver extends Binder {
+
+        private static final String DESCRIPTOR = "android.content.IIntentSender";
+
+        private final LinkedBlockingQueue<Intent> results = new LinkedBlockingQueue<>();
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) {
+            if (code != FIRST_CALL_TRANSACTION) {
+                return false;
+            }
+            data.enforceInterface(DESCRIPTOR);
+            data.readInt();
+            Intent intent = data.readInt() != 0 ? Intent.CREATOR.createFromParcel(data) : new Intent();
+            results.offer(intent);
+            if (reply != null && (flags & FLAG_ONEWAY) == 0) {
+                reply.writeNoException();
+                reply.writeInt(0);
+            }
+            return true;
+        }
+
+        IntentSender getIntentSender() throws ReflectiveOperationException {
+            Class<?> senderInterface = Class.forName(DESCRIPTOR);
+            Object target = Class.forName(DESCRIPTOR + "$Stub")
+                    .getMethod("asInterface", IBinder.class)
+                    .invoke(null, this);
+            Constructor<IntentSender> constructor = IntentSender.class.getDeclaredConstructor(senderInterface);
+            constructor.setAccessible(true);
+            return constructor.newInstance(target);
+        }
+    }
+}
@@ -0,0 +1,730 @@
+package com.aurora.services.manager;
+
+import android.content.Context;
+
+import com.aurora.services.Constants;
+import com.aurora.services.adb.AdbAuthorizationException;
+import com.aurora.services.adb.AdbClient;
+import com.aurora.services.adb.AdbCommandSession;
+import com.aurora.services.adb.AdbInstallHelper;
+import com.aurora.services.adb.AdbStream;
+import com.aurora.services.adb.AdbTimeouts;
+import com.aurora.services.adb.AdbWatchdog;
+import com.aurora.services.adb.PackageShell;
+import com.aurora.services.model.ConnectionState;
+import com.aurora.services.model.item.HostItem;
+import com.aurora.services.utils.Log;
+import com.aurora.services.utils.PrefUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Owns one authenticated adb connection per endpoint and hands it out to
+ * every install/uninstall request, so the CNXN/AUTH handshake is only paid
+ * once per host instead of once per package. Reconnects to wireless debugging
+ * hosts resume their TLS session, see {@link com.aurora.services.adb.AdbTlsContext}.
+ * <p>
+ * Handshakes and health checks double as the source of the published
+ * {@link ConnectionState}, so nobody needs a connection of their own just to
+ * learn whether adb works.
+ */
+public class AdbConnectionManager {
+
+    public interface StateListener {
+        void onConnectionStateChanged(ConnectionState state);
+    }
+
+    private static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    private static final long HEALTH_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    private static final long STRIPE_THRESHOLD = 128 * 1024 * 1024;
+    private static final int MAX_STRIPES = 4;
+
+    private static AdbConnectionManager instance;
+
+    private final Context context;
+    private final AdbEndpointRegistry endpointRegistry;
+    private final HostProfileManager profileManager;
+    private final Map<String, Entry> connections = new HashMap<>();
+    private final Map<String, PackageShell> packageShells = new HashMap<>();
+    private final Map<String, Map<String, Boolean>> readableDirectories = new HashMap<>();
+    private final List<StateListener> stateListeners = new CopyOnWriteArrayList<>();
+    private volatile ConnectionState connectionState = new ConnectionState(ConnectionState.STATE_UNKNOWN,
+            null, -1, null, System.currentTimeMillis());
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "adb-connection-manager");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService connectExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "adb-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static synchronized AdbConnectionManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new AdbConnectionManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AdbConnectionManager(Context context) {
+        this.context = context;
+        this.endpointRegistry = AdbEndpointRegistry.getInstance(context);
+        this.profileManager = HostProfileManager.getInstance(context);
+        long period = Math.max(getIdleTimeout() / 2, 1000);
+        scheduler.scheduleWithFixedDelay(this::reapIdleConnections, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the connection to the current target host in the background, so the
+     * first request after the service starts finds it already authenticated.
+     */
+    public void prewarm() {
+        scheduler.execute(() -> {
+            try {
+                release(acquire());
+            } catch (Throwable e) {
+                Log.w("Unable to prewarm adb connection: %s", e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Returns a healthy connection to the best reachable endpoint. A live pooled
+     * connection is reused first; otherwise endpoints are connected in rank order,
+     * racing the next one when a connect is slow. If none answers, the configured
+     * host is scanned for adbd on a new port. Every call must be paired with
+     * {@link #release} or {@link #invalidate}.
+     */
+    public AdbClient acquire() throws IOException, InterruptedException {
+        List<HostItem> endpoints = endpointRegistry.getRankedEndpoints();
+        for (HostItem hostItem : endpoints) {
+            AdbClient connection = reuse(hostItem.getKey());
+            if (connection != null) {
+                return connection;
+            }
+        }
+
+        IOException failure = new IOException("No adb endpoint configured");
+        for (int i = 0; i < endpoints.size(); i += 2) {
+            HostItem primary = endpoints.get(i);
+            HostItem secondary = i + 1 < endpoints.size() ? endpoints.get(i + 1) : null;
+            try {
+                return adopt(connectHedged(primary, secondary), true);
+            } catch (IOException e) {
+                Log.w("Unable to reach adb on %s: %s", primary.getKey(), e.getMessage());
+                failure = e;
+            }
+        }
+
+        HostItem discovered = endpointRegistry.discover();
+        if (discovered != null) {
+            try {
+                return adopt(connectHedged(discovered, null), true);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        publishFailure(endpoints.isEmpty() ? null : endpoints.get(0).getKey(), failure);
+        throw failure;
+    }
+
+    public ConnectionState getConnectionState() {
+        return connectionState;
+    }
+
+    public void addStateListener(StateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    public void removeStateListener(StateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    /**
+     * Checks the connection right away instead of waiting for the next request,
+     * publishing the outcome to the state listeners.
+     */
+    public void reprobe() {
+        scheduler.execute(() -> {
+            AdbClient connection = null;
+            try {
+                connection = acquire();
+                probe(connection);
+                release(connection);
+            } catch (Throwable e) {
+                if (connection != null) {
+                    publishFailure(keyOf(connection), e);
+                    invalidate(connection);
+                }
+                Log.w("adb re-probe failed: %s", e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Marks the end of a request, the connection stays open until it idles out.
+     * The transfer sizing the request settled on is remembered for the host.
+     */
+    public void release(AdbClient connection) {
+        Entry entry = findEntry(connection);
+        if (entry != null) {
+            synchronized (this) {
+                entry.users--;
+                entry.lastUsed = System.currentTimeMillis();
+            }
+        }
+        profileManager.save();
+    }
+
+    /**
+     * Closes a connection that failed mid-request, the next {@link #acquire}
+     * will reconnect.
+     */
+    public void invalidate(AdbClient connection) {
+        profileManager.save();
+        Entry entry = findEntry(connection);
+        if (entry != null) {
+            synchronized (this) {
+                entry.users--;
+            }
+            synchronized (entry) {
+                if (entry.connection == connection) {
+                    reset(entry);
+                }
+            }
+        }
+        closeQuietly(connection);
+    }
+
+    /**
+     * Returns the package command builder for the features the host advertised
+     * when it last connected.
+     */
+    public synchronized PackageShell getPackageShell(AdbClient connection) {
+        String key = keyOf(connection);
+        PackageShell shell = packageShells.get(key);
+        if (shell == null) {
+            shell = new PackageShell(connection.getFeatures());
+            packageShells.put(key, shell);
+        }
+        return shell;
+    }
+
+    /**
+     * Returns the persistent shell of {@code connection}, restarting it if it died.
+     */
+    public AdbCommandSession getCommandSession(AdbClient connection) throws IOException, InterruptedException {
+        Entry entry = findEntry(connection);
+        if (entry == null) {
+            throw new IOException("adb connection is no longer managed");
+        }
+        synchronized (entry) {
+            if (entry.session == null || !entry.session.isAlive()) {
+                entry.session = new AdbCommandSession(connection);
+            }
+            return entry.session;
+        }
+    }
+
+    /**
+     * Returns the on-device install helper of {@code connection}, starting it on
+     * first use. Returns null when the device only has {@code pm} or the helper
+     * failed to start on this connection, callers then use the shell commands.
+     */
+    public AdbInstallHelper getInstallHelper(AdbClient connection) throws IOException, InterruptedException {
+        if (getPackageShell(connection).getBackend() == PackageShell.Backend.PM) {
+            return null;
+        }
+        Entry entry = findEntry(connection);
+        if (entry == null) {
+            throw new IOException("adb connection is no longer managed");
+        }
+        synchronized (entry) {
+            if (entry.helperUnavailable) {
+                return null;
+            }
+            if (entry.installHelper == null || !entry.installHelper.isAlive()) {
+                try {
+                    entry.installHelper = AdbInstallHelper.start(connection, getCommandSession(connection),
+                            new File(context.getApplicationInfo().sourceDir));
+                } catch (IOException e) {
+                    Log.w("Install helper unavailable on %s: %s", entry.key, e.getMessage());
+                    entry.installHelper = null;
+                    entry.helperUnavailable = true;
+                }
+            }
+            return entry.installHelper;
+        }
+    }
+
+    /**
+     * Returns up to {@code count} install helpers on {@code connection}: the one of
+     * {@link #getInstallHelper} first, then extra helper processes that are kept
+     * with the connection for the next install. Each helper writes one split at a
+     * time, so they allow writing several splits of a session at once. Returns an
+     * empty list when there is no helper at all.
+     */
+    public List<AdbInstallHelper> getInstallHelpers(AdbClient connection, int count)
+            throws IOException, InterruptedException {
+        List<AdbInstallHelper> helpers = new ArrayList<>();
+        AdbInstallHelper primary = getInstallHelper(connection);
+        if (primary == null) {
+            return helpers;
+        }
+        helpers.add(primary);
+        Entry entry = findEntry(connection);
+        if (entry == null) {
+            throw new IOException("adb connection is no longer managed");
+        }
+        synchronized (entry) {
+            Iterator<AdbInstallHelper> iterator = entry.extraHelpers.iterator();
+            while (iterator.hasNext()) {
+                if (!iterator.next().isAlive()) {
+                    iterator.remove();
+                }
+            }
+            while (entry.extraHelpers.size() < count - 1) {
+                try {
+                    entry.extraHelpers.add(AdbInstallHelper.start(connection, getCommandSession(connection),
+                            new File(context.getApplicationInfo().sourceDir)));
+                } catch (IOException e) {
+                    // the primary helper still works, the splits just queue for it
+                    Log.w("Extra install helper unavailable on %s: %s", entry.key, e.getMessage());
+                    break;
+                }
+            }
+            helpers.addAll(entry.extraHelpers.subList(0, Math.min(count - 1, entry.extraHelpers.size())));
+        }
+        return helpers;
+    }
+
+    /**
+     * Whether the shell user on the device of {@code connection} can read
+     * {@code path}, so the device can read the split itself instead of us sending
+     * it. The answer is probed with a one byte read, which unlike {@code test -r}
+     * also goes through SELinux, and kept for the whole directory.
+     */
+    public boolean isRemoteReadable(AdbClient connection, String path) throws IOException, InterruptedException {
+        String directory = new File(path).getParent();
+        synchronized (this) {
+            Map<String, Boolean> directories = readableDirectories.get(keyOf(connection));
+            Boolean readable = directories != null ? directories.get(directory) : null;
+            if (readable != null) {
+                return readable;
+            }
+        }
+        boolean readable;
+        try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(connection, "read probe", AdbTimeouts.PROBE)) {
+            readable = getCommandSession(connection).execute("dd if=" + PackageShell.quote(path)
+                    + " of=/dev/null bs=1 count=1").isSuccess();
+        }
+        Log.i("%s is %s on %s", directory, readable ? "readable" : "not readable", keyOf(connection));
+        setRemoteReadable(connection, path, readable);
+        return readable;
+    }
+
+    /**
+     * Records that the device could not read {@code path} after all, splits from
+     * its directory are sent from here from now on.
+     */
+    public void setRemoteReadable(AdbClient connection, String path, boolean readable) {
+        synchronized (this) {
+            Map<String, Boolean> directories = readableDirectories.get(keyOf(connection));
+            if (directories == null) {
+                directories = new HashMap<>();
+                readableDirectories.put(keyOf(connection), directories);
+            }
+            directories.put(new File(path).getParent(), readable);
+        }
+    }
+
+    /**
+     * Opens extra connections to the endpoint of {@code connection} for a transfer
+     * of {@code totalSize} bytes. Streams of one connection share its socket, so
+     * one stalled stream holds up the others; writes spread over several
+     * connections do not wait for each other. Returns the extra connections only,
+     * none for small transfers, loopback hosts, a setting of 1 or an adbd that
+     * rejects more connections, which is remembered until the next reconnect.
+     * Close them with {@link #closeStripes}.
+     */
+    public List<AdbClient> openStripes(AdbClient connection, long totalSize) throws InterruptedException {
+        List<AdbClient> stripes = new ArrayList<>();
+        int count = getStripeCount(connection, totalSize);
+        Entry entry = findEntry(connection);
+        if (count <= 1 || entry == null) {
+            return stripes;
+        }
+        synchronized (entry) {
+            if (entry.stripesRejected) {
+                return stripes;
+            }
+        }
+        while (stripes.size() < count - 1) {
+            try {
+                stripes.add(reconnect(connection));
+            } catch (IOException e) {
+                Log.w("adbd on %s rejected connection %d: %s", entry.key, stripes.size() + 2, e.getMessage());
+                synchronized (entry) {
+                    entry.stripesRejected = true;
+                }
+                break;
+            }
+        }
+        if (!stripes.isEmpty()) {
+            Log.i("Striping %d bytes over %d connections to %s", totalSize, stripes.size() + 1, entry.key);
+        }
+        return stripes;
+    }
+
+    /**
+     * Opens a new connection to the endpoint of {@code connection}, which may be
+     * dead already. Like the connections of {@link #openStripes} it is not pooled,
+     * close it with {@link #closeStripes}.
+     */
+    public AdbClient reconnect(AdbClient connection) throws IOException, InterruptedException {
+        AdbKeyManager keyManager = AdbKeyManager.getInstance(context);
+        AdbClient client = AdbClient.connect(connection.getHost(), connection.getPort(),
+                keyManager.getCrypto(), keyManager.getTlsContext());
+        client.setFlowController(profileManager.getFlowController(keyOf(connection)));
+        return client;
+    }
+
+    public void closeStripes(List<AdbClient> stripes) {
+        for (AdbClient stripe : stripes) {
+            closeQuietly(stripe);
+        }
+        profileManager.save();
+    }
+
+    /**
+     * Starts an install helper on a connection of {@link #openStripes} or
+     * {@link #reconnect}, it lives as long as the connection. Returns null if it
+     * does not start.
+     */
+    public AdbInstallHelper startStripeHelper(AdbClient stripe) throws InterruptedException {
+        try (AdbCommandSession session = new AdbCommandSession(stripe)) {
+            return AdbInstallHelper.start(stripe, session, new File(context.getApplicationInfo().sourceDir));
+        } catch (IOException e) {
+            Log.w("Install helper unavailable on stripe %s:%d: %s", stripe.getHost(), stripe.getPort(),
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    public void shutdown() {
+        synchronized (AdbConnectionManager.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        scheduler.shutdownNow();
+        connectExecutor.shutdownNow();
+        stateListeners.clear();
+        endpointRegistry.shutdown();
+        synchronized (this) {
+            for (Entry entry : connections.values()) {
+                closeQuietly(entry.connection);
+                entry.connection = null;
+            }
+            connections.clear();
+        }
+    }
+
+    private static String keyOf(AdbClient connection) {
+        return connection.getHost() + ":" + connection.getPort();
+    }
+
+    private synchronized Entry findEntry(AdbClient connection) {
+        for (Entry entry : connections.values()) {
+            if (entry.connection == connection) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private boolean isHealthy(Entry entry) {
+        long now = System.currentTimeMillis();
+        if (!entry.connection.isAlive()) {
+            return false;
+        }
+        if (now - entry.lastChecked < HEALTH_CHECK_INTERVAL) {
+            return true;
+        }
+        try {
+            probe(entry.connection);
+            entry.lastChecked = now;
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs a no-op command on {@code connection} and publishes its round trip.
+     */
+    private void probe(AdbClient connection) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(connection, "health check",
+                AdbTimeouts.PROBE)) {
+            AdbStream stream = connection.open("exec:true");
+            stream.close();
+        }
+        publishState(new ConnectionState(ConnectionState.STATE_AUTHORIZED, keyOf(connection),
+                System.currentTimeMillis() - start, null, System.currentTimeMillis()));
+    }
+
+    private void publishFailure(String endpoint, Throwable e) {
+        int state = AdbAuthorizationException.isUnauthorized(e)
+                ? ConnectionState.STATE_UNAUTHORIZED
+                : ConnectionState.STATE_UNREACHABLE;
+        publishState(new ConnectionState(state, endpoint, -1, e.getMessage(), System.currentTimeMillis()));
+    }
+
+    private void publishState(ConnectionState state) {
+        connectionState = state;
+        for (StateListener listener : stateListeners) {
+            listener.onConnectionStateChanged(state);
+        }
+    }
+
+    /**
+     * Returns the pooled connection for {@code key} if it is still healthy.
+     */
+    private AdbClient reuse(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = connections.get(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.users++;
+        }
+        synchronized (entry) {
+            if (entry.connection != null && isHealthy(entry)) {
+                entry.lastUsed = System.currentTimeMillis();
+                return entry.connection;
+            }
+            if (entry.connection != null) {
+                Log.i("Dropping stale adb connection to %s", key);
+                closeQuietly(entry.connection);
+                reset(entry);
+            }
+        }
+        synchronized (this) {
+            entry.users--;
+        }
+        return null;
+    }
+
+    /**
+     * Pools a fresh connection. {@code use} counts the caller as a user, otherwise
+     * the connection is only kept around for the next request.
+     */
+    private AdbClient adopt(AdbClient client, boolean use) {
+        String key = keyOf(client);
+        Entry entry;
+        synchronized (this) {
+            entry = connections.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                connections.put(key, entry);
+            }
+            if (use) {
+                entry.users++;
+            }
+        }
+        synchronized (entry) {
+            if (entry.connection != null && entry.connection != client && entry.connection.isAlive()) {
+                // another request connected to the same endpoint meanwhile
+                closeQuietly(client);
+            } else {
+                entry.connection = client;
+                entry.session = null;
+                entry.installHelper = null;
+                entry.extraHelpers.clear();
+                entry.helperUnavailable = false;
+                entry.stripesRejected = false;
+                entry.lastChecked = System.currentTimeMillis();
+            }
+            entry.lastUsed = System.currentTimeMillis();
+            return entry.connection;
+        }
+    }
+
+    /**
+     * Connects to {@code primary}, and to {@code secondary} as well once the
+     * primary is slower than its usual latency or fails. The first connection to
+     * come up is returned, a later one is pooled for the next request.
+     */
+    private AdbClient connectHedged(HostItem primary, HostItem secondary) throws IOException, InterruptedException {
+        CompletionService<AdbClient> race = new ExecutorCompletionService<>(connectExecutor);
+        AtomicBoolean decided = new AtomicBoolean();
+        race.submit(() -> connect(primary, decided));
+        int pending = 1;
+        boolean hedged = secondary == null;
+        IOException failure = null;
+        try {
+            while (pending > 0) {
+                Future<AdbClient> done = hedged
+                        ? race.take()
+                        : race.poll(endpointRegistry.getHedgeDelay(primary), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    Log.i("adb on %s is slow, racing %s", primary.getKey(), secondary.getKey());
+                    race.submit(() -> connect(secondary, decided));
+                    pending++;
+                    hedged = true;
+                    continue;
+                }
+                pending--;
+                try {
+                    AdbClient client = done.get();
+                    if (client != null) {
+                        return client;
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof IOException
+                            ? (IOException) cause
+                            : new IOException(String.valueOf(cause.getMessage()), cause);
+                    if (!hedged) {
+                        race.submit(() -> connect(secondary, decided));
+                        pending++;
+                        hedged = true;
+                    }
+                }
+            }
+        } finally {
+            // connects still running after we returned or gave up are pooled on their own
+            decided.set(true);
+        }
+        throw failure;
+    }
+
+    /**
+     * Returns the connection if it won the race, otherwise pools it and returns
+     * null.
+     */
+    private AdbClient connect(HostItem hostItem, AtomicBoolean decided) throws IOException, InterruptedException {
+        AdbKeyManager keyManager = AdbKeyManager.getInstance(context);
+        long start = System.currentTimeMillis();
+        AdbClient client;
+        try {
+            client = AdbClient.connect(hostItem.host, hostItem.port,
+                    keyManager.getCrypto(), keyManager.getTlsContext());
+        } catch (IOException e) {
+            endpointRegistry.recordFailure(hostItem);
+            throw e;
+        }
+        long handshake = System.currentTimeMillis() - start;
+        endpointRegistry.recordSuccess(hostItem, handshake);
+        client.setFlowController(profileManager.getFlowController(hostItem.getKey()));
+        publishState(new ConnectionState(ConnectionState.STATE_AUTHORIZED, hostItem.getKey(),
+                handshake, null, System.currentTimeMillis()));
+        Log.i("Connected to adb on %s:%d", hostItem.host, hostItem.port);
+        synchronized (this) {
+            packageShells.put(keyOf(client), new PackageShell(client.getFeatures()));
+        }
+        if (decided.compareAndSet(false, true)) {
+            return client;
+        }
+        adopt(client, false);
+        return null;
+    }
+
+    private static void reset(Entry entry) {
+        entry.connection = null;
+        entry.session = null;
+        entry.installHelper = null;
+        entry.extraHelpers.clear();
+    }
+
+    private void reapIdleConnections() {
+        long idleTimeout = getIdleTimeout();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Entry> iterator = connections.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.users == 0 && now - entry.lastUsed >= idleTimeout) {
+                    if (entry.connection != null) {
+                        Log.i("Closing idle adb connection to %s", entry.key);
+                        closeQuietly(entry.connection);
+                    }
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Connections to use for {@code totalSize} bytes: PREFERENCE_INSTALL_CONNECTIONS
+     * if set, otherwise one per {@link #STRIPE_THRESHOLD} bytes. Transfers below the
+     * threshold and loopback hosts, which lose no packets, always use one.
+     */
+    private int getStripeCount(AdbClient connection, long totalSize) {
+        if (totalSize < STRIPE_THRESHOLD) {
+            return 1;
+        }
+        try {
+            if (InetAddress.getByName(connection.getHost()).isLoopbackAddress()) {
+                return 1;
+            }
+        } catch (UnknownHostException e) {
+            return 1;
+        }
+        int count = PrefUtil.getInteger(context, Constants.PREFERENCE_INSTALL_CONNECTIONS);
+        if (count <= 0) {
+            count = (int) Math.min(MAX_STRIPES, totalSize / STRIPE_THRESHOLD);
+        }
+        return Math.max(1, Math.min(MAX_STRIPES, count));
+    }
+
+    private long getIdleTimeout() {
+        int seconds = PrefUtil.getInteger(context, Constants.PREFERENCE_CONNECTION_IDLE_TIMEOUT);
+        return seconds > 0 ? TimeUnit.SECONDS.toMillis(seconds) : DEFAULT_IDLE_TIMEOUT;
+    }
+
+    private static void closeQuietly(AdbClient connection) {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private AdbClient connection;
+        private AdbCommandSession session;
+        private AdbInstallHelper installHelper;
+        private final List<AdbInstallHelper> extraHelpers = new ArrayList<>();
+        private boolean helperUnavailable;
+        private boolean stripesRejected;
+        private long lastUsed;
+        private long lastChecked;
+        private int users;
+
+        private Entry(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.aurora.services.manager;
+
+import android.content.Context;
+
+import com.aurora.services.Constants;
+import com.aurora.services.adb.AdbPortScanner;
+import com.aurora.services.model.item.HostItem;
+import com.aurora.services.utils.Log;
+import com.aurora.services.utils.PrefUtil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory health of every registered adb endpoint. When the ranking is asked
+ * for and the last probe is older than {@link #PROBE_INTERVAL}, a background
+ * probe opens a plain TCP connection to each endpoint and feeds the connect
+ * latency into a moving average, real connects feed it as well. Nothing runs
+ * while no one installs. Endpoints are ranked by health
+ * first and configured priority second, so installs move to the next endpoint
+ * on their own when the preferred one goes away.
+ * <p>
+ * When nothing on the configured host answers, e.g. because wireless debugging
+ * restarted on a new port, the host is scanned for adbd and the port found is
+ * registered as an endpoint.
+ */
+public class AdbEndpointRegistry {
+
+    private static final long PROBE_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final int PROBE_TIMEOUT = 1000;
+    private static final long MIN_HEDGE_DELAY = 250;
+    private static final long MAX_HEDGE_DELAY = 2000;
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    /* Wireless debugging binds an ephemeral port, the kernel's default range */
+    private static final int DEFAULT_DISCOVERY_MIN_PORT = 32768;
+    private static final int DEFAULT_DISCOVERY_MAX_PORT = 60999;
+    private static final int DISCOVERY_IN_FLIGHT = 256;
+    private static final int DISCOVERY_CANDIDATES = 4;
+    private static final long DISCOVERY_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    private static final long DISCOVERY_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+
+    private static AdbEndpointRegistry instance;
+
+    private final Context context;
+    private final Map<String, Health> health = new HashMap<>();
+    private final Object discoveryLock = new Object();
+    private long lastDiscovery;
+    private HostItem lastDiscovered;
+    private long lastProbe;
+    private boolean probing;
+    private final ExecutorService prober = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "adb-endpoint-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static synchronized AdbEndpointRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new AdbEndpointRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AdbEndpointRegistry(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Returns the registered endpoints, healthy ones first, then by priority and
+     * latency. Starts a probe if the ranking is stale, its results count from the
+     * next call on.
+     */
+    public List<HostItem> getRankedEndpoints() {
+        List<HostItem> hostItems = new TargetHostManager(context).getTargetHosts();
+        Map<String, Health> snapshot = new HashMap<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (!probing && now - lastProbe >= PROBE_INTERVAL) {
+                probing = true;
+                lastProbe = now;
+                prober.execute(this::probeAll);
+            }
+            for (HostItem hostItem : hostItems) {
+                snapshot.put(hostItem.getKey(), healthOf(hostItem.getKey()).copy());
+            }
+        }
+        Collections.sort(hostItems, (a, b) -> {
+            Health healthA = snapshot.get(a.getKey());
+            Health healthB = snapshot.get(b.getKey());
+            if (healthA.isHealthy() != healthB.isHealthy()) {
+                return healthA.isHealthy() ? -1 : 1;
+            }
+            if (!a.priority.equals(b.priority)) {
+                return Integer.compare(a.priority, b.priority);
+            }
+            return Double.compare(healthA.latencyOrMax(), healthB.latencyOrMax());
+        });
+        return hostItems;
+    }
+
+    /**
+     * How long a connect to {@code hostItem} may take before a second endpoint is
+     * raced against it, a few times its usual latency.
+     */
+    public synchronized long getHedgeDelay(HostItem hostItem) {
+        return hedgeDelay(healthOf(hostItem.getKey()).latency);
+    }
+
+    public synchronized void recordSuccess(HostItem hostItem, long latency) {
+        Health entry = healthOf(hostItem.getKey());
+        entry.latency = averageLatency(entry.latency, latency);
+        entry.failures = 0;
+    }
+
+    public synchronized void recordFailure(HostItem hostItem) {
+        healthOf(hostItem.getKey()).failures++;
+    }
+
+    /**
+     * Scans the configured host for adbd on a port that is not registered yet and
+     * registers the first one that answers. Returns the new endpoint, or null if
+     * discovery is disabled, ran moments ago or found nothing.
+     */
+    public HostItem discover() {
+        if (PrefUtil.getBoolean(context, Constants.PREFERENCE_PORT_DISCOVERY_DISABLED)) {
+            return null;
+        }
+        synchronized (discoveryLock) {
+            long now = System.currentTimeMillis();
+            if (now - lastDiscovery < DISCOVERY_INTERVAL) {
+                return lastDiscovered;
+            }
+            lastDiscovery = now;
+            lastDiscovered = null;
+
+            TargetHostManager targetHostManager = new TargetHostManager(context);
+            String host = targetHostManager.getTargetHost().host;
+            int minPort = PrefUtil.getInteger(context, Constants.PREFERENCE_PORT_DISCOVERY_MIN);
+            int maxPort = PrefUtil.getInteger(context, Constants.PREFERENCE_PORT_DISCOVERY_MAX);
+            if (minPort <= 0 || maxPort < minPort) {
+                minPort = DEFAULT_DISCOVERY_MIN_PORT;
+                maxPort = DEFAULT_DISCOVERY_MAX_PORT;
+            }
+            try {
+                List<Integer> ports = new AdbPortScanner(host, DISCOVERY_IN_FLIGHT)
+                        .scan(minPort, maxPort, DISCOVERY_CANDIDATES, DISCOVERY_TIMEOUT);
+                for (int port : ports) {
+                    HostItem candidate = new HostItem(host, port, TargetHostManager.DISCOVERED_PRIORITY);
+                    if (!isKnownBad(candidate)) {
+                        Log.i("Discovered adb on %s in %d ms", candidate.getKey(),
+                                System.currentTimeMillis() - now);
+                        targetHostManager.setDiscoveredHost(host, port);
+                        lastDiscovered = candidate;
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                Log.w("Port discovery on %s failed: %s", host, e.getMessage());
+            }
+            return lastDiscovered;
+        }
+    }
+
+    public void shutdown() {
+        synchronized (AdbEndpointRegistry.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        prober.shutdownNow();
+    }
+
+    /**
+     * Four times {@code latency}, within the hedge delay bounds. Without a latency
+     * yet the connect gets the longest delay.
+     */
+    static long hedgeDelay(double latency) {
+        if (latency < 0) {
+            return MAX_HEDGE_DELAY;
+        }
+        return Math.max(MIN_HEDGE_DELAY, Math.min(MAX_HEDGE_DELAY, (long) (latency * 4)));
+    }
+
+    /**
+     * Moves {@code average} towards {@code sample}, a negative average has no
+     * samples yet and is replaced.
+     */
+    static double averageLatency(double average, long sample) {
+        if (average < 0) {
+            return sample;
+        }
+        return average * (1 - LATENCY_WEIGHT) + sample * LATENCY_WEIGHT;
+    }
+
+    private synchronized boolean isKnownBad(HostItem hostItem) {
+        Health entry = health.get(hostItem.getKey());
+        return entry != null && !entry.isHealthy();
+    }
+
+    private Health healthOf(String key) {
+        Health entry = health.get(key);
+        if (entry == null) {
+            entry = new Health();
+            health.put(key, entry);
+        }
+        return entry;
+    }
+
+    private void probeAll() {
+        try {
+            probeEndpoints();
+        } finally {
+            synchronized (this) {
+                probing = false;
+            }
+        }
+    }
+
+    private void probeEndpoints() {
+        List<HostItem> hostItems = new TargetHostManager(context).getTargetHosts();
+        String primaryHost = hostItems.isEmpty() ? null : new TargetHostManager(context).getTargetHost().host;
+        boolean primaryHostReachable = false;
+        for (HostItem hostItem : hostItems) {
+            long start = System.currentTimeMillis();
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(hostItem.host, hostItem.port), PROBE_TIMEOUT);
+                recordSuccess(hostItem, System.currentTimeMillis() - start);
+                primaryHostReachable |= hostItem.host.equals(primaryHost);
+            } catch (IOException | RuntimeException e) {
+                recordFailure(hostItem);
+                Log.d("Endpoint %s unreachable: %s", hostItem.getKey(), e.getMessage());
+            }
+        }
+        if (primaryHost != null && !primaryHostReachable) {
+            discover();
+        }
+    }
+
+    private static class Health {
+        private double latency = -1;
+        private int failures;
+
+        private boolean isHealthy() {
+            return failures == 0;
+        }
+
+        private double latencyOrMax() {
+            return latency < 0 ? Double.MAX_VALUE : latency;
+        }
+
+        private Health copy() {
+            Health copy = new Health();
+            copy.latency = latency;
+            copy.failures = failures;
+            return copy;
+        }
+    }
+}
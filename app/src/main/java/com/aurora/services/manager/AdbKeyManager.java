@@ -0,0 +1,121 @@
+package com.aurora.services.manager;
+
+import android.content.Context;
+import android.util.Base64;
+
+import com.aurora.services.adb.AdbTlsContext;
+import com.aurora.services.utils.Log;
+import com.tananaev.adblib.AdbBase64;
+import com.tananaev.adblib.AdbCrypto;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps the adb key pair in memory for the lifetime of the process. The keys are
+ * read (or generated on first run) once in the background and every caller waits
+ * on the same future, so no install pays for key I/O or RSA key generation.
+ */
+public class AdbKeyManager {
+
+    private static final AdbBase64 BASE64 = data -> Base64.encodeToString(data, Base64.NO_WRAP);
+
+    private static AdbKeyManager instance;
+
+    private final File privateKey;
+    private final File publicKey;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "adb-key-manager");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Future<AdbCrypto> cryptoFuture;
+    private volatile AdbTlsContext tlsContext;
+
+    public static synchronized AdbKeyManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new AdbKeyManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AdbKeyManager(Context context) {
+        privateKey = new File(context.getFilesDir(), "adbkey");
+        publicKey = new File(context.getFilesDir(), "adbkey.pub");
+    }
+
+    /**
+     * Starts loading or generating the key pair if that has not happened yet.
+     */
+    public synchronized Future<AdbCrypto> preload() {
+        if (cryptoFuture == null) {
+            cryptoFuture = executor.submit(this::loadOrGenerate);
+        }
+        return cryptoFuture;
+    }
+
+    /**
+     * Returns the cached key pair, waiting for the background load if it is
+     * still running. A failed load is retried by the next caller.
+     */
+    public AdbCrypto getCrypto() throws IOException, InterruptedException {
+        Future<AdbCrypto> future = preload();
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                if (cryptoFuture == future) {
+                    cryptoFuture = null;
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to load adb keys", cause);
+        }
+    }
+
+    /**
+     * Returns the TLS client setup for wireless debugging. It is built around the
+     * same key pair during the background load and kept for the lifetime of the
+     * process, together with the per-host session caches.
+     */
+    public AdbTlsContext getTlsContext() throws IOException, InterruptedException {
+        getCrypto();
+        return tlsContext;
+    }
+
+    private AdbCrypto loadOrGenerate() throws Exception {
+        if (!privateKey.exists() || !publicKey.exists()) {
+            Log.i("Generating adb key pair");
+            AdbCrypto.generateAdbKeyPair(BASE64).saveAdbKeyPair(privateKey, publicKey);
+        }
+        // adblib stores the keys as plain PKCS#8 / X.509 encodings
+        KeyFactory factory = KeyFactory.getInstance("RSA");
+        KeyPair keyPair = new KeyPair(
+                factory.generatePublic(new X509EncodedKeySpec(readFile(publicKey))),
+                factory.generatePrivate(new PKCS8EncodedKeySpec(readFile(privateKey))));
+        tlsContext = new AdbTlsContext(keyPair);
+        return AdbCrypto.loadAdbKeyPair(BASE64, keyPair);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(data);
+        }
+        return data;
+    }
+}
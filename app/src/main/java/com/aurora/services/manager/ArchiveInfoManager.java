@@ -0,0 +1,198 @@
+package com.aurora.services.manager;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.os.Build;
+
+import com.aurora.services.utils.ApkManifest;
+import com.aurora.services.utils.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipFile;
+
+/**
+ * Tells whether a set of APK files is what the device has installed already, so
+ * resent installs can be answered without an update that only restarts the app.
+ * Parsing an archive costs more than the answer is worth, the manifest facts are
+ * therefore cached per file, keyed by its path, size and modification time.
+ */
+public class ArchiveInfoManager {
+
+    private static final int MAX_CACHED = 64;
+
+    private static ArchiveInfoManager instance;
+
+    private final Context context;
+    private final Map<String, ArchiveInfo> cache = new LinkedHashMap<String, ArchiveInfo>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArchiveInfo> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    public static synchronized ArchiveInfoManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new ArchiveInfoManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ArchiveInfoManager(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * True if {@code packageName} is installed with the split names, version code
+     * and signing certificates of {@code files}, and its APKs match them in sizes.
+     * Before Android O the installed split names are not known; the package
+     * manager copies APKs verbatim, so matching sizes have to stand in for them.
+     */
+    public boolean isInstalled(String packageName, List<File> files) {
+        PackageManager packageManager = context.getPackageManager();
+        PackageInfo installed;
+        try {
+            installed = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+
+        List<Long> installedSizes = new ArrayList<>();
+        installedSizes.add(new File(installed.applicationInfo.sourceDir).length());
+        if (installed.applicationInfo.splitSourceDirs != null) {
+            for (String splitSourceDir : installed.applicationInfo.splitSourceDirs) {
+                installedSizes.add(new File(splitSourceDir).length());
+            }
+        }
+        List<Long> sizes = new ArrayList<>();
+        for (File file : files) {
+            sizes.add(file.length());
+        }
+        Collections.sort(installedSizes);
+        Collections.sort(sizes);
+        // a different size rules the set out before any manifest is read
+        if (!installedSizes.equals(sizes)) {
+            return false;
+        }
+
+        List<ArchiveInfo> archiveInfos = new ArrayList<>();
+        for (File file : files) {
+            ArchiveInfo archiveInfo = getArchiveInfo(file);
+            if (archiveInfo == null) {
+                return false;
+            }
+            archiveInfos.add(archiveInfo);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // the base APK has no split name
+            List<String> installedSplitNames = new ArrayList<>();
+            installedSplitNames.add("");
+            if (installed.applicationInfo.splitNames != null) {
+                Collections.addAll(installedSplitNames, installed.applicationInfo.splitNames);
+            }
+            List<String> splitNames = new ArrayList<>();
+            for (ArchiveInfo archiveInfo : archiveInfos) {
+                splitNames.add(archiveInfo.splitName != null ? archiveInfo.splitName : "");
+            }
+            Collections.sort(installedSplitNames);
+            Collections.sort(splitNames);
+            if (!installedSplitNames.equals(splitNames)) {
+                return false;
+            }
+        }
+
+        // splits may not parse on their own, but every archive that does must agree
+        boolean parsed = false;
+        Set<String> installedSignatures = toStrings(installed.signatures);
+        for (ArchiveInfo archiveInfo : archiveInfos) {
+            if (archiveInfo.packageName == null) {
+                continue;
+            }
+            if (!archiveInfo.packageName.equals(packageName)
+                    || archiveInfo.versionCode != getVersionCode(installed)
+                    || !archiveInfo.signatures.equals(installedSignatures)) {
+                return false;
+            }
+            parsed = true;
+        }
+        return parsed;
+    }
+
+    private ArchiveInfo getArchiveInfo(File file) {
+        String key = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        synchronized (cache) {
+            ArchiveInfo archiveInfo = cache.get(key);
+            if (archiveInfo != null) {
+                return archiveInfo;
+            }
+        }
+
+        String splitName;
+        try (ZipFile zipFile = new ZipFile(file)) {
+            splitName = ApkManifest.readSplitName(zipFile);
+        } catch (IOException e) {
+            Log.d("Unable to read the manifest of %s: %s", file.getName(), e.getMessage());
+            return null;
+        }
+        PackageInfo packageInfo = context.getPackageManager()
+                .getPackageArchiveInfo(file.getAbsolutePath(), PackageManager.GET_SIGNATURES);
+        ArchiveInfo archiveInfo;
+        if (packageInfo == null || packageInfo.signatures == null) {
+            Log.d("No archive info for %s", file.getName());
+            archiveInfo = new ArchiveInfo(splitName, null, 0, null);
+        } else {
+            archiveInfo = new ArchiveInfo(splitName, packageInfo.packageName, getVersionCode(packageInfo),
+                    toStrings(packageInfo.signatures));
+        }
+        synchronized (cache) {
+            cache.put(key, archiveInfo);
+        }
+        return archiveInfo;
+    }
+
+    private static Set<String> toStrings(Signature[] signatures) {
+        Set<String> strings = new HashSet<>();
+        if (signatures != null) {
+            for (Signature signature : signatures) {
+                strings.add(signature.toCharsString());
+            }
+        }
+        return strings;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getVersionCode(PackageInfo packageInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return packageInfo.getLongVersionCode();
+        }
+        return packageInfo.versionCode;
+    }
+
+    /**
+     * The manifest facts of one APK. Only the split name is known for splits the
+     * package manager cannot parse on their own.
+     */
+    private static class ArchiveInfo {
+        private final String splitName;
+        private final String packageName;
+        private final long versionCode;
+        private final Set<String> signatures;
+
+        private ArchiveInfo(String splitName, String packageName, long versionCode, Set<String> signatures) {
+            this.splitName = splitName;
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.signatures = signatures;
+        }
+    }
+}
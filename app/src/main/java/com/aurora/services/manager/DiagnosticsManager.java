@@ -0,0 +1,203 @@
+package com.aurora.services.manager;
+
+import android.content.Context;
+
+import com.aurora.services.adb.AdbClient;
+import com.aurora.services.adb.AdbCommandSession;
+import com.aurora.services.adb.AdbFlowController;
+import com.aurora.services.adb.AdbStream;
+import com.aurora.services.adb.AdbTimeouts;
+import com.aurora.services.adb.AdbWatchdog;
+import com.aurora.services.adb.PackageShell;
+import com.aurora.services.model.item.HostProfile;
+import com.aurora.services.utils.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Synthetic benchmark of the current adb target, to tell a slow link from a slow
+ * adbd or a slow {@code pm}. It runs on a connection of its own, so the fixed
+ * chunk sizes it measures do not disturb the pooled connection, and stores the
+ * result as the host's {@link HostProfile}.
+ */
+public class DiagnosticsManager {
+
+    private static final int[] CHUNK_SIZES = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    private static final long BENCHMARK_BYTES = 4 * 1024 * 1024;
+    private static final int RTT_SAMPLES = 5;
+
+    private final Context context;
+
+    private String endpoint;
+
+    public DiagnosticsManager(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Benchmarks the endpoint installs currently go to and returns its new profile.
+     */
+    public HostProfile run() throws IOException, InterruptedException {
+        AdbConnectionManager connectionManager = AdbConnectionManager.getInstance(context);
+        AdbClient pooled = connectionManager.acquire();
+        String host = pooled.getHost();
+        int port = pooled.getPort();
+        connectionManager.release(pooled);
+        endpoint = host + ":" + port;
+
+        AdbKeyManager keyManager = AdbKeyManager.getInstance(context);
+        HostProfile profile = new HostProfile();
+        long start = System.nanoTime();
+        AdbClient client = AdbClient.connect(host, port, keyManager.getCrypto(), keyManager.getTlsContext());
+        try {
+            profile.handshakeTime = millisSince(start);
+            profile.rtt = measureRtt(client);
+            measureThroughput(client, profile);
+            measureSession(client, profile);
+        } finally {
+            client.close();
+        }
+
+        // keep a bandwidth-delay product or two in flight
+        long window = profile.throughput * Math.max(profile.rtt, 1) / 1000 * 2;
+        profile.window = Math.max(profile.chunkSize, Math.min(AdbFlowController.MAX_WINDOW, window));
+        profile.calibrated = System.currentTimeMillis();
+        profile.updated = profile.calibrated;
+        HostProfileManager.getInstance(context).calibrate(endpoint, profile);
+        Log.i("Diagnostics of %s:%d: %s", host, port, format(profile).replace('\n', ','));
+        return profile;
+    }
+
+    /**
+     * The endpoint the last {@link #run} measured.
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public static String format(HostProfile profile) {
+        return String.format(Locale.US,
+                "Handshake: %d ms\n"
+                        + "Round trip: %d ms\n"
+                        + "Throughput: %.1f MB/s at %d KiB chunks\n"
+                        + "Session create: %d ms\n"
+                        + "Session commit: %d ms",
+                profile.handshakeTime,
+                profile.rtt,
+                profile.throughput / 1e6,
+                profile.chunkSize / 1024,
+                profile.sessionCreateTime,
+                profile.sessionCommitTime);
+    }
+
+    /**
+     * Median time from a one byte WRTE to its OKAY on a stream that is open
+     * already. It covers the link and adbd but not spawning a process on the
+     * device, which makes it the round trip the flow control window has to cover.
+     */
+    private static long measureRtt(AdbClient client) throws IOException, InterruptedException {
+        byte[] probe = new byte[1];
+        long[] samples = new long[RTT_SAMPLES];
+        try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(client, "diagnostics rtt",
+                AdbTimeouts.PROBE)) {
+            AdbStream stream = client.open("exec:cat > /dev/null");
+            try {
+                for (int i = 0; i < samples.length; i++) {
+                    long start = System.nanoTime();
+                    stream.write(probe);
+                    stream.awaitAcknowledged();
+                    samples[i] = System.nanoTime() - start;
+                }
+            } finally {
+                stream.close();
+            }
+        }
+        Arrays.sort(samples);
+        return samples[samples.length / 2] / 1000000;
+    }
+
+    /**
+     * Writes into a sink on the device at every chunk size the host accepts. The
+     * sink is {@code head -c}, not {@code cat}: it exits once all bytes arrived,
+     * and its CLSE marks the end of the transfer.
+     */
+    private static void measureThroughput(AdbClient client, HostProfile profile)
+            throws IOException, InterruptedException {
+        ByteBuffer data = ByteBuffer.allocateDirect(256 * 1024);
+        int lastChunkSize = 0;
+        profile.throughput = 0L;
+        for (int chunkSize : CHUNK_SIZES) {
+            chunkSize = Math.min(chunkSize, client.getMaxData());
+            if (chunkSize <= lastChunkSize) {
+                break;
+            }
+            lastChunkSize = chunkSize;
+            client.setFlowController(AdbFlowController.fixed(chunkSize, AdbFlowController.MAX_WINDOW));
+            long throughput;
+            try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(client, "diagnostics write",
+                    AdbTimeouts.write(BENCHMARK_BYTES), AdbTimeouts.WRITE_STALL)) {
+                long start = System.nanoTime();
+                AdbStream stream = client.open("exec:head -c " + BENCHMARK_BYTES + " > /dev/null");
+                try {
+                    long remaining = BENCHMARK_BYTES;
+                    while (remaining > 0) {
+                        data.clear();
+                        data.limit((int) Math.min(data.capacity(), remaining));
+                        remaining -= data.remaining();
+                        stream.write(data);
+                    }
+                    stream.readAll();
+                } finally {
+                    stream.close();
+                }
+                throughput = BENCHMARK_BYTES * 1000000000L / Math.max(System.nanoTime() - start, 1);
+            }
+            Log.d("Diagnostics: %d KiB chunks, %d bytes/s", chunkSize / 1024, throughput);
+            if (throughput > profile.throughput) {
+                profile.throughput = throughput;
+                profile.chunkSize = chunkSize;
+            }
+        }
+    }
+
+    /**
+     * Times creating a session and committing it. The commit fails, the session
+     * is empty, but the round trip through the package manager is what counts.
+     */
+    private static void measureSession(AdbClient client, HostProfile profile)
+            throws IOException, InterruptedException {
+        PackageShell shell = new PackageShell(client.getFeatures());
+        AdbWatchdog watchdog = AdbWatchdog.get();
+        try (AdbCommandSession session = new AdbCommandSession(client)) {
+            String output;
+            long start = System.nanoTime();
+            try (AdbWatchdog.Watch ignored = watchdog.watch(client, "diagnostics create", AdbTimeouts.CREATE)) {
+                output = session.execute(shell.commandLine("install-create", "-S", "0")).getOutput();
+            }
+            profile.sessionCreateTime = millisSince(start);
+            Matcher matcher = Pattern.compile("\\[(\\d+)\\]").matcher(output);
+            if (!matcher.find()) {
+                throw new IOException("install-create failed: " + output.trim());
+            }
+            String sessionId = matcher.group(1);
+
+            start = System.nanoTime();
+            try (AdbWatchdog.Watch ignored = watchdog.watch(client, "diagnostics commit", AdbTimeouts.COMMIT)) {
+                session.execute(shell.commandLine("install-commit", sessionId));
+            }
+            profile.sessionCommitTime = millisSince(start);
+            try (AdbWatchdog.Watch ignored = watchdog.watch(client, "diagnostics abandon", AdbTimeouts.CREATE)) {
+                session.execute(shell.commandLine("install-abandon", sessionId));
+            }
+        }
+    }
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
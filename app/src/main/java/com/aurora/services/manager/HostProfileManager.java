@@ -0,0 +1,119 @@
+package com.aurora.services.manager;
+
+import android.content.Context;
+
+import com.aurora.services.Constants;
+import com.aurora.services.adb.AdbFlowController;
+import com.aurora.services.model.item.HostProfile;
+import com.aurora.services.utils.Log;
+import com.aurora.services.utils.PrefUtil;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps one {@link AdbFlowController} per endpoint, seeded from and saved back
+ * to the stored {@link HostProfile} of that endpoint.
+ */
+public class HostProfileManager {
+
+    private static final Gson gson = new Gson();
+
+    private static HostProfileManager instance;
+
+    private final Context context;
+    private final Map<String, AdbFlowController> controllers = new HashMap<>();
+
+    public static synchronized HostProfileManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new HostProfileManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private HostProfileManager(Context context) {
+        this.context = context;
+    }
+
+    public synchronized AdbFlowController getFlowController(String key) {
+        AdbFlowController controller = controllers.get(key);
+        if (controller == null) {
+            HostProfile profile = getProfiles().get(key);
+            controller = profile != null && profile.chunkSize != null && profile.window != null
+                    ? new AdbFlowController(profile.chunkSize, profile.window)
+                    : new AdbFlowController();
+            controllers.put(key, controller);
+        }
+        return controller;
+    }
+
+    public synchronized HostProfile getProfile(String key) {
+        return getProfiles().get(key);
+    }
+
+    /**
+     * Stores a diagnostics result as the profile of {@code key} and restarts the
+     * host's controller from the transfer setting it found best.
+     */
+    public synchronized void calibrate(String key, HostProfile profile) {
+        getFlowController(key).reset(profile.chunkSize, profile.window);
+        Map<String, HostProfile> profiles = getProfiles();
+        profiles.put(key, profile);
+        PrefUtil.putString(context, Constants.PREFERENCE_HOST_PROFILES, gson.toJson(profiles));
+    }
+
+    /**
+     * Stores the last good setting of every host whose controller moved, without
+     * touching the preferences when none did.
+     */
+    public synchronized void save() {
+        Map<String, AdbFlowController> moved = new HashMap<>();
+        for (Map.Entry<String, AdbFlowController> entry : controllers.entrySet()) {
+            if (entry.getValue().takeLastGoodChanged()) {
+                moved.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (moved.isEmpty()) {
+            return;
+        }
+        Map<String, HostProfile> profiles = getProfiles();
+        boolean changed = false;
+        for (Map.Entry<String, AdbFlowController> entry : moved.entrySet()) {
+            AdbFlowController controller = entry.getValue();
+            HostProfile profile = profiles.get(entry.getKey());
+            if (profile == null) {
+                profile = new HostProfile();
+                profiles.put(entry.getKey(), profile);
+            }
+            int chunkSize = controller.getLastGoodChunkSize();
+            long window = controller.getLastGoodWindow();
+            if (profile.chunkSize == null || profile.chunkSize != chunkSize
+                    || profile.window == null || profile.window != window) {
+                profile.chunkSize = chunkSize;
+                profile.window = window;
+                profile.updated = System.currentTimeMillis();
+                changed = true;
+            }
+        }
+        if (changed) {
+            PrefUtil.putString(context, Constants.PREFERENCE_HOST_PROFILES, gson.toJson(profiles));
+        }
+    }
+
+    private Map<String, HostProfile> getProfiles() {
+        String raw = PrefUtil.getString(context, Constants.PREFERENCE_HOST_PROFILES);
+        Type type = new TypeToken<Map<String, HostProfile>>() {
+        }.getType();
+        Map<String, HostProfile> profiles = null;
+        try {
+            profiles = gson.fromJson(raw, type);
+        } catch (JsonParseException e) {
+            Log.w("Ignoring invalid host profiles: %s", e.getMessage());
+        }
+        return profiles != null ? profiles : new HashMap<>();
+    }
+}
@@ -0,0 +1,265 @@
+package com.aurora.services.manager;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+
+import com.aurora.services.Constants;
+import com.aurora.services.adb.AdbClient;
+import com.aurora.services.adb.AdbTimeouts;
+import com.aurora.services.adb.AdbWatchdog;
+import com.aurora.services.model.item.CachedSplit;
+import com.aurora.services.utils.Log;
+import com.aurora.services.utils.PrefUtil;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the splits kept on each device under /data/local/tmp/aurora-cache,
+ * named by their SHA-256, so installing the same split again, on another user
+ * or after a failed commit, reads it by path instead of sending it again. The
+ * index is only a hint, entries are checked on the device before use. The least
+ * recently used splits are removed once a device holds more than the budget.
+ */
+public class StagingCacheManager {
+
+    public static final String CACHE_DIR = "/data/local/tmp/aurora-cache";
+
+    private static final long DEFAULT_BUDGET_MB = 1024;
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_CACHED_HASHES = 64;
+    private static final Gson gson = new Gson();
+
+    private static final Map<String, String> fileHashes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_HASHES;
+        }
+    };
+
+    private static StagingCacheManager instance;
+
+    private final Context context;
+
+    public static synchronized StagingCacheManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new StagingCacheManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private StagingCacheManager(Context context) {
+        this.context = context;
+    }
+
+    public boolean isEnabled() {
+        return PrefUtil.getBoolean(context, Constants.PREFERENCE_STAGING_CACHE);
+    }
+
+    public static String pathOf(String hash) {
+        return CACHE_DIR + "/" + hash + ".apk";
+    }
+
+    /**
+     * Returns which of {@code hashes} are on the device of {@code connection},
+     * marking them used. Entries the device lost meanwhile leave the index.
+     */
+    public Set<String> findCached(AdbClient connection, Collection<String> hashes)
+            throws IOException, InterruptedException {
+        Set<String> candidates = new HashSet<>();
+        synchronized (this) {
+            Map<String, CachedSplit> splits = getIndex().get(connection.getHost());
+            for (String hash : hashes) {
+                if (splits != null && splits.containsKey(hash)) {
+                    candidates.add(hash);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return candidates;
+        }
+        StringBuilder command = new StringBuilder("for f in");
+        for (String hash : candidates) {
+            command.append(' ').append(pathOf(hash));
+        }
+        command.append("; do [ -f $f ] && echo $f; done");
+        String output = execute(connection, command.toString());
+        Set<String> found = new HashSet<>();
+        for (String hash : candidates) {
+            if (output.contains(pathOf(hash))) {
+                found.add(hash);
+            }
+        }
+        synchronized (this) {
+            Map<String, Map<String, CachedSplit>> index = getIndex();
+            Map<String, CachedSplit> splits = index.get(connection.getHost());
+            if (splits != null) {
+                for (String hash : candidates) {
+                    if (found.contains(hash)) {
+                        splits.get(hash).lastUsed = System.currentTimeMillis();
+                    } else {
+                        splits.remove(hash);
+                    }
+                }
+                saveIndex(index);
+            }
+        }
+        Log.i("%d of %d splits cached on %s", found.size(), hashes.size(), connection.getHost());
+        return found;
+    }
+
+    /**
+     * Records a split that was pushed to {@link #pathOf} its hash and evicts the
+     * least recently used splits above the budget of the device, except the
+     * {@code pinned} ones the current install still needs.
+     */
+    public void add(AdbClient connection, String hash, long size, Collection<String> pinned)
+            throws IOException, InterruptedException {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Map<String, Map<String, CachedSplit>> index = getIndex();
+            Map<String, CachedSplit> splits = index.get(connection.getHost());
+            if (splits == null) {
+                splits = new HashMap<>();
+                index.put(connection.getHost(), splits);
+            }
+            CachedSplit split = new CachedSplit();
+            split.size = size;
+            split.lastUsed = System.currentTimeMillis();
+            splits.put(hash, split);
+
+            long total = 0;
+            for (CachedSplit cached : splits.values()) {
+                total += cached.size;
+            }
+            List<Map.Entry<String, CachedSplit>> entries = new ArrayList<>(splits.entrySet());
+            Collections.sort(entries, (a, b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed));
+            long budget = getBudget();
+            for (Map.Entry<String, CachedSplit> entry : entries) {
+                if (total <= budget) {
+                    break;
+                }
+                // splits in use stay even if they alone exceed the budget
+                if (entry.getKey().equals(hash) || pinned.contains(entry.getKey())) {
+                    continue;
+                }
+                total -= entry.getValue().size;
+                splits.remove(entry.getKey());
+                evicted.add(entry.getKey());
+            }
+            saveIndex(index);
+        }
+        if (!evicted.isEmpty()) {
+            StringBuilder command = new StringBuilder("rm -f");
+            for (String evictedHash : evicted) {
+                command.append(' ').append(pathOf(evictedHash));
+            }
+            execute(connection, command.toString());
+            Log.i("Evicted %d splits from the cache on %s", evicted.size(), connection.getHost());
+        }
+    }
+
+    /**
+     * SHA-256 of a local file such as an installed APK, remembered by its path,
+     * size and modification time so an unchanged file is only read once.
+     */
+    public static String hashOf(File file) throws IOException {
+        String key = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        synchronized (fileHashes) {
+            String hash = fileHashes.get(key);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        String hash;
+        try (ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)) {
+            hash = hashOf(descriptor, descriptor.getStatSize());
+        }
+        synchronized (fileHashes) {
+            fileHashes.put(key, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * SHA-256 of the first {@code size} bytes of {@code file}, read at absolute
+     * positions through a descriptor of its own so the original stays unread.
+     */
+    public static String hashOf(ParcelFileDescriptor file, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileInputStream source = new ParcelFileDescriptor.AutoCloseInputStream(file.dup())) {
+            FileChannel channel = source.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Split ended " + (size - position) + " bytes early");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    private String execute(AdbClient connection, String command) throws IOException, InterruptedException {
+        try (AdbWatchdog.Watch ignored = AdbWatchdog.get().watch(connection, "staging cache",
+                AdbTimeouts.CREATE)) {
+            return AdbConnectionManager.getInstance(context).getCommandSession(connection)
+                    .execute(command).getOutput();
+        }
+    }
+
+    private long getBudget() {
+        int megabytes = PrefUtil.getInteger(context, Constants.PREFERENCE_STAGING_CACHE_SIZE);
+        return (megabytes > 0 ? megabytes : DEFAULT_BUDGET_MB) * 1024 * 1024;
+    }
+
+    private Map<String, Map<String, CachedSplit>> getIndex() {
+        String raw = PrefUtil.getString(context, Constants.PREFERENCE_STAGING_CACHE_INDEX);
+        Type type = new TypeToken<Map<String, Map<String, CachedSplit>>>() {
+        }.getType();
+        Map<String, Map<String, CachedSplit>> index = null;
+        try {
+            index = gson.fromJson(raw, type);
+        } catch (JsonParseException e) {
+            Log.w("Ignoring invalid staging cache index: %s", e.getMessage());
+        }
+        return index != null ? index : new HashMap<>();
+    }
+
+    private void saveIndex(Map<String, Map<String, CachedSplit>> index) {
+        PrefUtil.putString(context, Constants.PREFERENCE_STAGING_CACHE_INDEX, gson.toJson(index));
+    }
+}
@@ -4,46 +4,172 @@ import android.content.Context;
 
 import com.aurora.services.Constants;
 import com.aurora.services.model.item.HostItem;
+import com.aurora.services.utils.Log;
 import com.aurora.services.utils.PrefUtil;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Persists the adb endpoints to install through. The primary target is the one
+ * set in the target host dialog; further endpoints (e.g. a wireless debugging
+ * port) are kept as a list and tried by {@link AdbEndpointRegistry} when the
+ * primary is slow or down. 127.0.0.1:5555 is always the last resort.
+ */
 public class TargetHostManager {
 
-    private Context context;
-    private Gson gson;
+    /** Endpoints found by port discovery rank right behind the configured target. */
+    public static final int DISCOVERED_PRIORITY = 10;
+    private static final int FALLBACK_PRIORITY = 100;
+
+    private static final Gson gson = new Gson();
+
+    /* Parsed prefs, reused as long as the raw JSON did not change */
+    private static String cachedPrimaryRaw;
+    private static HostItem cachedPrimary;
+    private static String cachedExtraRaw;
+    private static List<HostItem> cachedExtra;
 
-    private HostItem targetHost = new HostItem();
+    private Context context;
 
     public TargetHostManager(Context context) {
         this.context = context;
-        this.gson = new Gson();
     }
 
     public void setTargetHost(String host, Integer port) {
-        targetHost.host = host;
-        targetHost.port = port;
+        HostItem targetHost = new HostItem(host, port, 0);
         PrefUtil.putString(context, Constants.PREFERENCE_TARGET_HOST, gson.toJson(targetHost));
     }
 
     public HostItem getTargetHost() {
-        HostItem hostItem = null;
-        try {
-            String raw = PrefUtil.getString(context, Constants.PREFERENCE_TARGET_HOST);
-            Type type = new TypeToken<HostItem>() {
-            }.getType();
-            hostItem = gson.fromJson(raw, type);
-        }catch(Exception e){
+        String raw = PrefUtil.getString(context, Constants.PREFERENCE_TARGET_HOST);
+        synchronized (TargetHostManager.class) {
+            if (!raw.equals(cachedPrimaryRaw)) {
+                HostItem hostItem = null;
+                try {
+                    hostItem = gson.fromJson(raw, HostItem.class);
+                } catch (Exception e) {
+                    Log.w("Ignoring invalid target host %s: %s", raw, e.getMessage());
+                }
+                cachedPrimary = hostItem != null && hostItem.host != null && hostItem.port != null
+                        ? hostItem
+                        : new HostItem();
+                cachedPrimaryRaw = raw;
+            }
+            return copy(cachedPrimary);
+        }
+    }
+
+    /**
+     * Registers an additional endpoint, replacing an existing one on the same
+     * host and port.
+     */
+    public void addTargetHost(String host, Integer port, Integer priority) {
+        List<HostItem> hostItems = getExtraHosts();
+        removeFrom(hostItems, host, port);
+        hostItems.add(new HostItem(host, port, priority));
+        PrefUtil.putString(context, Constants.PREFERENCE_TARGET_HOSTS, gson.toJson(hostItems));
+    }
+
+    /**
+     * Records the port discovery found adbd on, replacing the port found last
+     * time on the same host.
+     */
+    public void setDiscoveredHost(String host, Integer port) {
+        List<HostItem> hostItems = getExtraHosts();
+        for (int i = hostItems.size() - 1; i >= 0; i--) {
+            HostItem hostItem = hostItems.get(i);
+            if (hostItem.host.equals(host) && hostItem.priority == DISCOVERED_PRIORITY) {
+                hostItems.remove(i);
+            }
+        }
+        removeFrom(hostItems, host, port);
+        hostItems.add(new HostItem(host, port, DISCOVERED_PRIORITY));
+        PrefUtil.putString(context, Constants.PREFERENCE_TARGET_HOSTS, gson.toJson(hostItems));
+    }
+
+    public void removeTargetHost(String host, Integer port) {
+        List<HostItem> hostItems = getExtraHosts();
+        if (removeFrom(hostItems, host, port)) {
+            PrefUtil.putString(context, Constants.PREFERENCE_TARGET_HOSTS, gson.toJson(hostItems));
+        }
+    }
+
+    /**
+     * Returns every endpoint ordered by priority, the primary target first.
+     */
+    public List<HostItem> getTargetHosts() {
+        List<HostItem> hostItems = new ArrayList<>();
+        hostItems.add(getTargetHost());
+        for (HostItem hostItem : getExtraHosts()) {
+            if (!contains(hostItems, hostItem.host, hostItem.port)) {
+                hostItems.add(hostItem);
+            }
+        }
+        HostItem fallback = new HostItem();
+        if (!contains(hostItems, fallback.host, fallback.port)) {
+            fallback.priority = FALLBACK_PRIORITY;
+            hostItems.add(fallback);
+        }
+        Collections.sort(hostItems, (a, b) -> Integer.compare(a.priority, b.priority));
+        return hostItems;
+    }
 
+    private List<HostItem> getExtraHosts() {
+        String raw = PrefUtil.getString(context, Constants.PREFERENCE_TARGET_HOSTS);
+        synchronized (TargetHostManager.class) {
+            if (!raw.equals(cachedExtraRaw)) {
+                List<HostItem> hostItems = null;
+                try {
+                    Type type = new TypeToken<List<HostItem>>() {
+                    }.getType();
+                    hostItems = gson.fromJson(raw, type);
+                } catch (Exception e) {
+                    Log.w("Ignoring invalid target host list: %s", e.getMessage());
+                }
+                cachedExtra = new ArrayList<>();
+                if (hostItems != null) {
+                    for (HostItem hostItem : hostItems) {
+                        if (hostItem != null && hostItem.host != null && hostItem.port != null) {
+                            cachedExtra.add(hostItem);
+                        }
+                    }
+                }
+                cachedExtraRaw = raw;
+            }
+            List<HostItem> hostItems = new ArrayList<>();
+            for (HostItem hostItem : cachedExtra) {
+                hostItems.add(copy(hostItem));
+            }
+            return hostItems;
         }
+    }
+
+    private static boolean contains(List<HostItem> hostItems, String host, Integer port) {
+        for (HostItem hostItem : hostItems) {
+            if (hostItem.host.equals(host) && hostItem.port.equals(port)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        if (hostItem == null) {
-            hostItem = new HostItem();
+    private static boolean removeFrom(List<HostItem> hostItems, String host, Integer port) {
+        boolean removed = false;
+        for (int i = hostItems.size() - 1; i >= 0; i--) {
+            if (hostItems.get(i).host.equals(host) && hostItems.get(i).port.equals(port)) {
+                hostItems.remove(i);
+                removed = true;
+            }
         }
-        return hostItem;
+        return removed;
+    }
+
+    private static HostItem copy(HostItem hostItem) {
+        return new HostItem(hostItem.host, hostItem.port, hostItem.priority != null ? hostItem.priority : 0);
     }
 }
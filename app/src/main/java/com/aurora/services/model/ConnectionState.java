@@ -0,0 +1,22 @@
+package com.aurora.services.model;
+
+import lombok.Value;
+
+/**
+ * What the service last learned about its adb connection, published to the
+ * activity over {@link com.aurora.services.IConnectionStateCallback}.
+ */
+@Value
+public class ConnectionState {
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_AUTHORIZED = 1;
+    public static final int STATE_UNAUTHORIZED = 2;
+    public static final int STATE_UNREACHABLE = 3;
+
+    int state;
+    String endpoint;
+    /* Round trip of the last probe or handshake in ms, -1 if unknown */
+    long rtt;
+    String error;
+    long timeStamp;
+}
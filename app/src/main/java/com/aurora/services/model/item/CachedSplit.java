@@ -0,0 +1,9 @@
+package com.aurora.services.model.item;
+
+/**
+ * A split kept in the on-device staging cache under its SHA-256.
+ */
+public class CachedSplit {
+    public Long size;
+    public Long lastUsed;
+}
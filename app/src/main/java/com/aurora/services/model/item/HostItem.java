@@ -3,4 +3,19 @@ package com.aurora.services.model.item;
 public class HostItem {
         public String host = "127.0.0.1";
         public Integer port = 5555;
+        /** Lower is preferred when several endpoints are registered. */
+        public Integer priority = 0;
+
+        public HostItem() {
+        }
+
+        public HostItem(String host, Integer port, Integer priority) {
+                this.host = host;
+                this.port = port;
+                this.priority = priority;
+        }
+
+        public String getKey() {
+                return host + ":" + port;
+        }
 }
@@ -0,0 +1,20 @@
+package com.aurora.services.model.item;
+
+/**
+ * Transfer parameters remembered for one adb endpoint, so the next install
+ * starts where the last one left off instead of probing from scratch. The
+ * measurements are filled in by a diagnostics run.
+ */
+public class HostProfile {
+    public Integer chunkSize;
+    public Long window;
+    public Long updated;
+
+    /* Last diagnostics run, times in ms and throughput in bytes per second */
+    public Long handshakeTime;
+    public Long rtt;
+    public Long throughput;
+    public Long sessionCreateTime;
+    public Long sessionCommitTime;
+    public Long calibrated;
+}
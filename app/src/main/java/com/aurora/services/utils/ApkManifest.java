@@ -0,0 +1,149 @@
+package com.aurora.services.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads attributes of the root element of a compiled AndroidManifest.xml, just
+ * enough of the binary XML format to tell which split an APK is.
+ */
+public class ApkManifest {
+
+    private static final String MANIFEST = "AndroidManifest.xml";
+
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int UTF8_FLAG = 1 << 8;
+    private static final int TYPE_STRING = 0x03;
+
+    /**
+     * The {@code split} attribute of the manifest in {@code apk}, null for a base APK.
+     */
+    public static String readSplitName(ZipFile apk) throws IOException {
+        ZipEntry entry = apk.getEntry(MANIFEST);
+        if (entry == null) {
+            throw new IOException("No " + MANIFEST + " in " + apk.getName());
+        }
+        byte[] manifest = new byte[(int) entry.getSize()];
+        try (InputStream in = apk.getInputStream(entry)) {
+            int read = 0;
+            while (read < manifest.length) {
+                int n = in.read(manifest, read, manifest.length - read);
+                if (n < 0) {
+                    throw new IOException("Truncated " + MANIFEST);
+                }
+                read += n;
+            }
+        }
+        return readAttribute(ByteBuffer.wrap(manifest).order(ByteOrder.LITTLE_ENDIAN), "split");
+    }
+
+    /**
+     * The value of the attribute {@code name} of the root element, null if it has none.
+     */
+    static String readAttribute(ByteBuffer xml, String name) throws IOException {
+        try {
+            if ((xml.getShort(0) & 0xffff) != RES_XML_TYPE) {
+                throw new IOException("Not a binary XML file");
+            }
+            String[] strings = null;
+            int position = xml.getShort(2) & 0xffff;
+            while (position + 8 <= xml.limit()) {
+                int type = xml.getShort(position) & 0xffff;
+                int size = xml.getInt(position + 4);
+                if (type == RES_STRING_POOL_TYPE) {
+                    strings = readStringPool(xml, position);
+                } else if (type == RES_XML_START_ELEMENT_TYPE) {
+                    if (strings == null) {
+                        throw new IOException("No string pool before the root element");
+                    }
+                    return readRootAttribute(xml, position, strings, name);
+                }
+                if (size <= 0) {
+                    break;
+                }
+                position += size;
+            }
+            throw new IOException("No root element");
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed binary XML", e);
+        }
+    }
+
+    private static String readRootAttribute(ByteBuffer xml, int position, String[] strings, String name) {
+        int headerSize = xml.getShort(position + 2) & 0xffff;
+        int extension = position + headerSize;
+        int attributeStart = xml.getShort(extension + 8) & 0xffff;
+        int attributeSize = xml.getShort(extension + 10) & 0xffff;
+        int attributeCount = xml.getShort(extension + 12) & 0xffff;
+        for (int i = 0; i < attributeCount; i++) {
+            int attribute = extension + attributeStart + i * attributeSize;
+            int nameIndex = xml.getInt(attribute + 4);
+            if (nameIndex < 0 || !name.equals(strings[nameIndex])) {
+                continue;
+            }
+            int rawValue = xml.getInt(attribute + 8);
+            int dataType = xml.get(attribute + 15) & 0xff;
+            if (rawValue >= 0) {
+                return strings[rawValue];
+            }
+            if (dataType == TYPE_STRING) {
+                return strings[xml.getInt(attribute + 16)];
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private static String[] readStringPool(ByteBuffer xml, int position) {
+        int stringCount = xml.getInt(position + 8);
+        int flags = xml.getInt(position + 16);
+        int stringsStart = xml.getInt(position + 20);
+        int headerSize = xml.getShort(position + 2) & 0xffff;
+        boolean utf8 = (flags & UTF8_FLAG) != 0;
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            int offset = position + stringsStart + xml.getInt(position + headerSize + i * 4);
+            strings[i] = utf8 ? readUtf8(xml, offset) : readUtf16(xml, offset);
+        }
+        return strings;
+    }
+
+    private static String readUtf8(ByteBuffer xml, int offset) {
+        // the length in UTF-16 units comes first, then the length in bytes
+        offset += (xml.get(offset) & 0x80) != 0 ? 2 : 1;
+        int length = xml.get(offset) & 0xff;
+        if ((length & 0x80) != 0) {
+            length = ((length & 0x7f) << 8) | (xml.get(offset + 1) & 0xff);
+            offset += 2;
+        } else {
+            offset += 1;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = xml.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readUtf16(ByteBuffer xml, int offset) {
+        int length = xml.getShort(offset) & 0xffff;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7fff) << 16) | (xml.getShort(offset + 2) & 0xffff);
+            offset += 4;
+        } else {
+            offset += 2;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = xml.getChar(offset + i * 2);
+        }
+        return new String(chars);
+    }
+}
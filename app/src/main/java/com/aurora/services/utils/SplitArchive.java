@@ -0,0 +1,307 @@
+package com.aurora.services.utils;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The splits inside an .apks, .xapk or .apkm bundle, read from the ZIP central
+ * directory without extracting anything. Each split is handed out as the read
+ * end of a pipe that a feeder thread fills: stored entries are moved from the
+ * archive into the pipe by the kernel ({@link FileChannel#transferTo}, sendfile),
+ * deflated entries are inflated on the way.
+ */
+public class SplitArchive {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final long ZIP64_MARKER = 0xffffffffL;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService feeders = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "archive-feeder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ParcelFileDescriptor archive;
+    private final List<Entry> splits;
+
+    /**
+     * Lists the splits of {@code archive}. The descriptor stays owned by the
+     * caller; {@link #open} duplicates it for every feeder.
+     */
+    public SplitArchive(ParcelFileDescriptor archive) throws IOException {
+        this.archive = archive;
+        try (FileInputStream in = new FileInputStream(archive.getFileDescriptor())) {
+            splits = readSplits(in.getChannel());
+        }
+        if (splits.isEmpty()) {
+            throw new IOException("No splits in archive");
+        }
+    }
+
+    public List<Entry> getSplits() {
+        return Collections.unmodifiableList(splits);
+    }
+
+    /**
+     * Starts feeding the uncompressed bytes of {@code entry} into a pipe and
+     * returns its read end. Closing that end stops the feeder.
+     */
+    public ParcelFileDescriptor open(Entry entry) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor source = archive.dup();
+        feeders.execute(() -> {
+            try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+                 FileOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                FileChannel channel = in.getChannel();
+                long dataOffset = getDataOffset(channel, entry);
+                if (entry.method == METHOD_STORED) {
+                    FileChannel sink = out.getChannel();
+                    long position = dataOffset;
+                    long end = dataOffset + entry.size;
+                    while (position < end) {
+                        long sent = channel.transferTo(position, end - position, sink);
+                        if (sent <= 0) {
+                            throw new EOFException("Archive ended inside " + entry.name);
+                        }
+                        position += sent;
+                    }
+                } else {
+                    Inflater inflater = new Inflater(true);
+                    try (InputStream inflated = new InflaterInputStream(
+                            new RangeInputStream(channel, dataOffset, entry.compressedSize), inflater,
+                            INFLATE_BUFFER_SIZE)) {
+                        long copied = IOUtils.copy(inflated, out, INFLATE_BUFFER_SIZE);
+                        if (copied != entry.size) {
+                            throw new IOException(entry.name + " inflated to " + copied + " bytes, expected "
+                                    + entry.size);
+                        }
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            } catch (IOException e) {
+                // the reader sees the pipe end early and reports the short split
+                Log.w("Feeding %s failed: %s", entry.name, e.getMessage());
+            }
+        });
+        return pipe[0];
+    }
+
+    private static List<Entry> readSplits(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int tailSize = (int) Math.min(size, EOCD_SIZE + 0xffff);
+        ByteBuffer tail = read(channel, size - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a ZIP archive");
+        }
+
+        long entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long directorySize = tail.getInt(eocd + 12) & ZIP64_MARKER;
+        long directoryOffset = tail.getInt(eocd + 16) & ZIP64_MARKER;
+        int locator = eocd - 20;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+            ByteBuffer zip64 = read(channel, tail.getLong(locator + 8), 56);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Corrupt ZIP64 end of central directory");
+            }
+            entryCount = zip64.getLong(32);
+            directorySize = zip64.getLong(40);
+            directoryOffset = zip64.getLong(48);
+        }
+        if (directorySize > Integer.MAX_VALUE || directoryOffset + directorySize > size) {
+            throw new IOException("Corrupt central directory");
+        }
+
+        ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+        List<Entry> splits = new ArrayList<>();
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (directory.getInt(position) != CENTRAL_SIGNATURE) {
+                throw new IOException("Corrupt central directory entry " + i);
+            }
+            int flags = directory.getShort(position + 8) & 0xffff;
+            int method = directory.getShort(position + 10) & 0xffff;
+            long compressedSize = directory.getInt(position + 20) & ZIP64_MARKER;
+            long uncompressedSize = directory.getInt(position + 24) & ZIP64_MARKER;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(position + 42) & ZIP64_MARKER;
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + 46);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // ZIP64 values follow in this order, each only if its field is maxed out
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xffff;
+                int length = directory.getShort(extra + 2) & 0xffff;
+                if (id == ZIP64_EXTRA) {
+                    int value = extra + 4;
+                    if (uncompressedSize == ZIP64_MARKER) {
+                        uncompressedSize = directory.getLong(value);
+                        value += 8;
+                    }
+                    if (compressedSize == ZIP64_MARKER) {
+                        compressedSize = directory.getLong(value);
+                        value += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MARKER) {
+                        localHeaderOffset = directory.getLong(value);
+                    }
+                }
+                extra += 4 + length;
+            }
+            position = extraEnd + commentLength;
+
+            if (!isSplit(name)) {
+                continue;
+            }
+            if ((flags & FLAG_ENCRYPTED) != 0) {
+                throw new IOException(name + " is encrypted");
+            }
+            if (method != METHOD_STORED && method != METHOD_DEFLATED) {
+                throw new IOException(name + " uses unsupported compression " + method);
+            }
+            if (method == METHOD_STORED && compressedSize != uncompressedSize) {
+                throw new IOException("Corrupt stored entry " + name);
+            }
+            splits.add(new Entry(name, method, compressedSize, uncompressedSize, localHeaderOffset));
+        }
+        return splits;
+    }
+
+    /**
+     * APKs at any depth, except the standalone APKs bundletool adds for devices
+     * without split support.
+     */
+    private static boolean isSplit(String name) {
+        return name.toLowerCase(Locale.US).endsWith(".apk") && !name.startsWith("standalones/");
+    }
+
+    private static long getDataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer header = read(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_SIGNATURE) {
+            throw new IOException("Corrupt local header of " + entry.name);
+        }
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Archive ended early");
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        private Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        /**
+         * The file name of the split, without the directories inside the archive.
+         */
+        public String getName() {
+            return name.substring(name.lastIndexOf('/') + 1);
+        }
+
+        /**
+         * Uncompressed size in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Reads a byte range of a channel at absolute positions, leaving the channel
+     * position alone.
+     */
+    private static class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        private RangeInputStream(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int count = (int) Math.min(length, end - position);
+            int read = channel.read(ByteBuffer.wrap(bytes, offset, count), position);
+            if (read < 0) {
+                throw new EOFException("Archive ended early");
+            }
+            position += read;
+            return read;
+        }
+    }
+}
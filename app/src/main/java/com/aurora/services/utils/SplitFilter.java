@@ -0,0 +1,158 @@
+package com.aurora.services.utils;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the configuration splits of an app bundle install that fit this device,
+ * the way bundletool does for a device spec: the preferred supported ABI, the
+ * closest screen density and the enabled languages. Config splits are named
+ * {@code config.<qualifier>}, or {@code <feature>.config.<qualifier>} for those of a
+ * feature split; each module is chosen for on its own. ABI and density splits
+ * are all kept if none of them fits, the package manager then decides as before.
+ */
+public class SplitFilter {
+
+    private static final String CONFIG = "config.";
+
+    private static final Set<String> ABIS = new HashSet<>();
+    private static final Map<String, Integer> DENSITIES = new LinkedHashMap<>();
+
+    static {
+        for (String abi : new String[]{"armeabi", "armeabi_v7a", "arm64_v8a", "x86", "x86_64", "mips", "mips64"}) {
+            ABIS.add(abi);
+        }
+        DENSITIES.put("ldpi", 120);
+        DENSITIES.put("mdpi", 160);
+        DENSITIES.put("tvdpi", 213);
+        DENSITIES.put("hdpi", 240);
+        DENSITIES.put("xhdpi", 320);
+        DENSITIES.put("xxhdpi", 480);
+        DENSITIES.put("xxxhdpi", 640);
+    }
+
+    /**
+     * Returns the keys of {@code splitNames}, file name to split name, whose
+     * splits this device does not need.
+     */
+    public static List<String> findUnneeded(Context context, Map<String, String> splitNames) {
+        Map<String, List<String>> abiSplits = new HashMap<>();
+        Map<String, List<String>> densitySplits = new HashMap<>();
+        List<String> localeSplits = new ArrayList<>();
+        for (Map.Entry<String, String> entry : splitNames.entrySet()) {
+            String qualifier = getQualifier(entry.getValue());
+            if (qualifier == null) {
+                continue;
+            }
+            String module = entry.getValue().substring(0, entry.getValue().length() - qualifier.length());
+            if (ABIS.contains(qualifier)) {
+                group(abiSplits, module).add(entry.getKey());
+            } else if (DENSITIES.containsKey(qualifier)) {
+                group(densitySplits, module).add(entry.getKey());
+            } else if (qualifier.matches("[a-z]{2,3}(_[A-Za-z0-9]+)?")) {
+                localeSplits.add(entry.getKey());
+            }
+        }
+
+        List<String> unneeded = new ArrayList<>();
+        for (List<String> splits : abiSplits.values()) {
+            String best = null;
+            for (String abi : Build.SUPPORTED_ABIS) {
+                best = findByQualifier(splitNames, splits, abi.replace('-', '_'));
+                if (best != null) {
+                    break;
+                }
+            }
+            keepOnly(splits, best, unneeded);
+        }
+
+        int densityDpi = context.getResources().getDisplayMetrics().densityDpi;
+        for (List<String> splits : densitySplits.values()) {
+            String best = null;
+            int bestDpi = 0;
+            for (String split : splits) {
+                int dpi = DENSITIES.get(getQualifier(splitNames.get(split)));
+                // the smallest bucket at or above the screen, else the largest below it
+                boolean better = best == null
+                        || (bestDpi < densityDpi ? dpi > bestDpi : dpi >= densityDpi && dpi < bestDpi);
+                if (better) {
+                    best = split;
+                    bestDpi = dpi;
+                }
+            }
+            keepOnly(splits, best, unneeded);
+        }
+
+        Set<String> languages = getLanguages(context);
+        for (String split : localeSplits) {
+            String language = getQualifier(splitNames.get(split)).split("_")[0];
+            if (!languages.contains(language)) {
+                unneeded.add(split);
+            }
+        }
+        return unneeded;
+    }
+
+    private static String getQualifier(String splitName) {
+        if (splitName == null) {
+            return null;
+        }
+        if (splitName.startsWith(CONFIG)) {
+            return splitName.substring(CONFIG.length());
+        }
+        int index = splitName.lastIndexOf("." + CONFIG);
+        return index >= 0 ? splitName.substring(index + 1 + CONFIG.length()) : null;
+    }
+
+    private static List<String> group(Map<String, List<String>> groups, String module) {
+        List<String> splits = groups.get(module);
+        if (splits == null) {
+            splits = new ArrayList<>();
+            groups.put(module, splits);
+        }
+        return splits;
+    }
+
+    private static String findByQualifier(Map<String, String> splitNames, List<String> splits, String qualifier) {
+        for (String split : splits) {
+            if (qualifier.equals(getQualifier(splitNames.get(split)))) {
+                return split;
+            }
+        }
+        return null;
+    }
+
+    private static void keepOnly(List<String> splits, String keep, List<String> unneeded) {
+        if (keep == null) {
+            return;
+        }
+        for (String split : splits) {
+            if (!split.equals(keep)) {
+                unneeded.add(split);
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Set<String> getLanguages(Context context) {
+        Set<String> languages = new HashSet<>();
+        Configuration configuration = context.getResources().getConfiguration();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            for (int i = 0; i < configuration.getLocales().size(); i++) {
+                languages.add(configuration.getLocales().get(i).getLanguage());
+            }
+        } else {
+            languages.add(configuration.locale.getLanguage());
+        }
+        return languages;
+    }
+}
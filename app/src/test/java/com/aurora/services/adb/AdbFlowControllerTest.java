@@ -0,0 +1,105 @@
+package com.aurora.services.adb;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdbFlowControllerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SPIKE = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Test
+    public void growsOneStepPerWindowOfAckedData() {
+        AdbFlowController controller = new AdbFlowController();
+        controller.onAck(AdbFlowController.DEFAULT_WINDOW - 1, FAST);
+        assertEquals(AdbFlowController.DEFAULT_CHUNK, controller.getChunkSize());
+
+        controller.onAck(1, FAST);
+        assertEquals(80 * 1024, controller.getChunkSize());
+        assertEquals(AdbFlowController.DEFAULT_WINDOW + 80 * 1024, controller.getWindow());
+    }
+
+    @Test
+    public void growthStopsAtTheLimits() {
+        AdbFlowController controller = new AdbFlowController();
+        for (int i = 0; i < 1000; i++) {
+            controller.onAck(AdbFlowController.MAX_WINDOW, FAST);
+        }
+        assertEquals(AdbFlowController.MAX_CHUNK, controller.getChunkSize());
+        assertEquals(AdbFlowController.MAX_WINDOW, controller.getWindow());
+    }
+
+    @Test
+    public void halvesOncePerRoundTripOnLatencySpike() {
+        AdbFlowController controller = new AdbFlowController(256 * 1024, 1024 * 1024);
+        controller.onAck(1024, FAST);
+        controller.onAck(1024, SPIKE);
+        assertEquals(128 * 1024, controller.getChunkSize());
+        assertEquals(512 * 1024, controller.getWindow());
+
+        // the acks of data sent before the first cut do not cut again
+        controller.onAck(1024, SPIKE);
+        assertEquals(128 * 1024, controller.getChunkSize());
+
+        // the spike is not remembered as a good setting
+        assertEquals(256 * 1024, controller.getLastGoodChunkSize());
+        assertEquals(1024 * 1024, controller.getLastGoodWindow());
+    }
+
+    @Test
+    public void quartersOnTimeout() {
+        AdbFlowController controller = new AdbFlowController(256 * 1024, 1024 * 1024);
+        controller.onTimeout();
+        assertEquals(64 * 1024, controller.getChunkSize());
+        assertEquals(256 * 1024, controller.getWindow());
+        assertEquals(64 * 1024, controller.getLastGoodChunkSize());
+
+        // teardowns of the other stripes of the same transfer count once
+        controller.onTimeout();
+        assertEquals(64 * 1024, controller.getChunkSize());
+    }
+
+    @Test
+    public void neverShrinksBelowTheMinimum() {
+        AdbFlowController controller = new AdbFlowController(1, 1);
+        assertEquals(AdbFlowController.MIN_CHUNK, controller.getChunkSize());
+        assertEquals(AdbFlowController.MIN_CHUNK, controller.getWindow());
+        controller.onTimeout();
+        assertEquals(AdbFlowController.MIN_CHUNK, controller.getChunkSize());
+        assertEquals(AdbFlowController.MIN_CHUNK, controller.getWindow());
+    }
+
+    @Test
+    public void fixedControllerKeepsItsSetting() {
+        AdbFlowController controller = AdbFlowController.fixed(32 * 1024, 128 * 1024);
+        controller.onAck(AdbFlowController.MAX_WINDOW, FAST);
+        controller.onAck(1024, SPIKE);
+        controller.onTimeout();
+        assertEquals(32 * 1024, controller.getChunkSize());
+        assertEquals(128 * 1024, controller.getWindow());
+        assertFalse(controller.takeLastGoodChanged());
+    }
+
+    @Test
+    public void reportsLastGoodChangesOnce() {
+        AdbFlowController controller = new AdbFlowController();
+        assertFalse(controller.takeLastGoodChanged());
+
+        // the first ack only confirms the starting setting
+        controller.onAck(AdbFlowController.DEFAULT_WINDOW, FAST);
+        assertFalse(controller.takeLastGoodChanged());
+
+        controller.onAck(1024, FAST);
+        assertTrue(controller.takeLastGoodChanged());
+        assertFalse(controller.takeLastGoodChanged());
+
+        controller.onTimeout();
+        controller.reset(AdbFlowController.DEFAULT_CHUNK, AdbFlowController.DEFAULT_WINDOW);
+        assertFalse(controller.takeLastGoodChanged());
+    }
+}
@@ -0,0 +1,37 @@
+package com.aurora.services.adb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdbStreamTest {
+
+    @Test(timeout = 10000)
+    public void awaitsAcknowledgement() throws Exception {
+        checkAcknowledgement(false);
+    }
+
+    @Test(timeout = 10000)
+    public void awaitsDelayedAcknowledgement() throws Exception {
+        checkAcknowledgement(true);
+    }
+
+    private static void checkAcknowledgement(boolean delayedAck) throws Exception {
+        try (FakeAdbd adbd = new FakeAdbd(null, delayedAck)) {
+            AdbClient client = AdbClient.connect("127.0.0.1", adbd.getPort(), null);
+            try {
+                assertEquals(delayedAck, client.isDelayedAck());
+                AdbStream stream = client.open("exec:cat > /dev/null");
+                for (int i = 0; i < 5; i++) {
+                    stream.write(new byte[]{(byte) i});
+                    stream.awaitAcknowledged();
+                }
+                stream.write(new byte[3 * 1024 * 1024]);
+                stream.awaitAcknowledged();
+                stream.close();
+            } finally {
+                client.close();
+            }
+        }
+    }
+}
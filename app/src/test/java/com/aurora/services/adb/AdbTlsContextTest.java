@@ -0,0 +1,95 @@
+package com.aurora.services.adb;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdbTlsContextTest {
+
+    private static KeyPair clientKeys;
+    private static KeyPair deviceKeys;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        clientKeys = generator.generateKeyPair();
+        deviceKeys = generator.generateKeyPair();
+    }
+
+    @Test
+    public void certificateParsesAndVerifies() throws Exception {
+        X509Certificate certificate = AdbTlsContext.createCertificate(clientKeys);
+        X509Certificate parsed = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(certificate.getEncoded()));
+
+        parsed.checkValidity();
+        parsed.verify(clientKeys.getPublic());
+        assertEquals(3, parsed.getVersion());
+        assertEquals("SHA256withRSA", parsed.getSigAlgName());
+        assertEquals(parsed.getSubjectX500Principal(), parsed.getIssuerX500Principal());
+        assertEquals(clientKeys.getPublic(), parsed.getPublicKey());
+    }
+
+    @Test
+    public void connectsThroughStls() throws Exception {
+        AdbTlsContext tlsContext = new AdbTlsContext(clientKeys);
+        try (FakeAdbd adbd = new FakeAdbd(createDeviceContext(), false)) {
+            // the second connection resumes the session of the first
+            for (int i = 0; i < 2; i++) {
+                AdbClient client = AdbClient.connect("127.0.0.1", adbd.getPort(), null, tlsContext);
+                try {
+                    assertTrue(client.isTls());
+                    assertEquals(clientKeys.getPublic(), adbd.getClientKey());
+                    assertEquals("hello", client.open("exec:echo hello").readAllString().trim());
+                } finally {
+                    client.close();
+                }
+            }
+        }
+    }
+
+    private static SSLContext createDeviceContext() throws Exception {
+        char[] password = new char[0];
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("device", deviceKeys.getPrivate(), password,
+                new Certificate[]{AdbTlsContext.createCertificate(deviceKeys)});
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore, password);
+
+        // adbd checks the client key against its list of authorized keys, not a CA
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(factory.getKeyManagers(), new TrustManager[]{trustAll}, null);
+        return context;
+    }
+}
@@ -0,0 +1,176 @@
+package com.aurora.services.adb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A stand-in adbd on a loopback port. It accepts every key, upgrades the
+ * connection with STLS when given an {@link SSLContext}, answers
+ * {@code exec:echo <text>} and {@code exec:true}, and acknowledges whatever is
+ * written to any other stream, with byte counts if it offers delayed acks.
+ */
+class FakeAdbd implements Closeable {
+
+    private static final String BANNER = "device::ro.product.model=fake;features=cmd,abb_exec";
+    private static final int DELAYED_ACK_WINDOW = 256 * 1024;
+
+    private final ServerSocket server;
+    private final SSLContext tlsContext;
+    private final boolean delayedAck;
+    private volatile PublicKey clientKey;
+
+    FakeAdbd(SSLContext tlsContext, boolean delayedAck) throws IOException {
+        this.server = new ServerSocket(0);
+        this.tlsContext = tlsContext;
+        this.delayedAck = delayedAck;
+        Thread acceptor = new Thread(this::accept, "fake-adbd");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * The public key of the client certificate of the last TLS connection.
+     */
+    PublicKey getClientKey() {
+        return clientKey;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                Thread handler = new Thread(() -> serve(socket), "fake-adbd-connection");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket plain = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(plain.getInputStream()));
+            OutputStream out = new BufferedOutputStream(plain.getOutputStream());
+            expect(in, AdbProtocol.CMD_CNXN);
+            if (tlsContext != null) {
+                send(out, AdbProtocol.CMD_STLS, AdbProtocol.STLS_VERSION, 0, new byte[0]);
+                expect(in, AdbProtocol.CMD_STLS);
+                SSLSocket tls = (SSLSocket) tlsContext.getSocketFactory().createSocket(plain, in, true);
+                tls.setUseClientMode(false);
+                tls.setNeedClientAuth(true);
+                tls.startHandshake();
+                clientKey = tls.getSession().getPeerCertificates()[0].getPublicKey();
+                in = new DataInputStream(new BufferedInputStream(tls.getInputStream()));
+                out = new BufferedOutputStream(tls.getOutputStream());
+            }
+            String banner = delayedAck ? BANNER + "," + AdbProtocol.FEATURE_DELAYED_ACK : BANNER;
+            send(out, AdbProtocol.CMD_CNXN, AdbProtocol.VERSION_SKIP_CHECKSUM, AdbProtocol.MAX_PAYLOAD,
+                    banner.getBytes(StandardCharsets.UTF_8));
+            serveStreams(in, out);
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    private void serveStreams(DataInputStream in, OutputStream out) throws IOException {
+        Map<Integer, Integer> streams = new HashMap<>();
+        int nextId = 1;
+        while (true) {
+            int[] header = readHeader(in);
+            byte[] payload = new byte[header[3]];
+            in.readFully(payload);
+            int remoteId = header[1];
+            switch (header[0]) {
+                case AdbProtocol.CMD_OPEN: {
+                    int localId = nextId++;
+                    String destination = new String(payload, 0, payload.length - 1, StandardCharsets.UTF_8);
+                    send(out, AdbProtocol.CMD_OKAY, localId, remoteId, ack(DELAYED_ACK_WINDOW));
+                    if (destination.startsWith("exec:echo ")) {
+                        send(out, AdbProtocol.CMD_WRTE, localId, remoteId,
+                                (destination.substring(10) + "\n").getBytes(StandardCharsets.UTF_8));
+                        send(out, AdbProtocol.CMD_CLSE, localId, remoteId, new byte[0]);
+                    } else if (destination.equals("exec:true")) {
+                        send(out, AdbProtocol.CMD_CLSE, localId, remoteId, new byte[0]);
+                    } else {
+                        streams.put(remoteId, localId);
+                    }
+                    break;
+                }
+                case AdbProtocol.CMD_WRTE: {
+                    Integer localId = streams.get(remoteId);
+                    if (localId != null) {
+                        send(out, AdbProtocol.CMD_OKAY, localId, remoteId, ack(payload.length));
+                    }
+                    break;
+                }
+                case AdbProtocol.CMD_CLSE:
+                    streams.remove(remoteId);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private byte[] ack(int bytes) {
+        if (!delayedAck) {
+            return new byte[0];
+        }
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(bytes).array();
+    }
+
+    private static void expect(DataInputStream in, int command) throws IOException {
+        int[] header = readHeader(in);
+        in.skipBytes(header[3]);
+        if (header[0] != command) {
+            throw new IOException("Expected " + AdbProtocol.commandName(command)
+                    + ", got " + AdbProtocol.commandName(header[0]));
+        }
+    }
+
+    private static int[] readHeader(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[AdbProtocol.HEADER_LENGTH];
+        in.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int[] header = new int[6];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = buffer.getInt();
+        }
+        return header;
+    }
+
+    private static void send(OutputStream out, int command, int arg0, int arg1, byte[] payload)
+            throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(AdbProtocol.HEADER_LENGTH + payload.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        AdbProtocol.putHeader(message, command, arg0, arg1, payload.length, 0);
+        message.put(payload);
+        out.write(message.array());
+        out.flush();
+    }
+}
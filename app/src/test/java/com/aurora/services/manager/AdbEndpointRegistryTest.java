@@ -0,0 +1,41 @@
+package com.aurora.services.manager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdbEndpointRegistryTest {
+
+    @Test
+    public void hedgeDelayWithoutLatencyIsTheLongest() {
+        assertEquals(2000, AdbEndpointRegistry.hedgeDelay(-1));
+    }
+
+    @Test
+    public void hedgeDelayIsFourTimesTheLatency() {
+        assertEquals(400, AdbEndpointRegistry.hedgeDelay(100));
+        assertEquals(1002, AdbEndpointRegistry.hedgeDelay(250.5));
+    }
+
+    @Test
+    public void hedgeDelayIsClamped() {
+        assertEquals(250, AdbEndpointRegistry.hedgeDelay(0));
+        assertEquals(250, AdbEndpointRegistry.hedgeDelay(10));
+        assertEquals(2000, AdbEndpointRegistry.hedgeDelay(600));
+    }
+
+    @Test
+    public void firstSampleReplacesMissingLatency() {
+        assertEquals(80, AdbEndpointRegistry.averageLatency(-1, 80), 0);
+    }
+
+    @Test
+    public void latencyMovesTowardsSamples() {
+        double latency = AdbEndpointRegistry.averageLatency(100, 200);
+        assertEquals(130, latency, 1e-9);
+        for (int i = 0; i < 50; i++) {
+            latency = AdbEndpointRegistry.averageLatency(latency, 20);
+        }
+        assertEquals(20, latency, 1e-3);
+    }
+}